@@ -0,0 +1,183 @@
+package org.piax.samples.anycast;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+
+/**
+ * 典型的な {@link AnycastAggregator} を得るためのユーティリティ
+ */
+public final class Aggregators {
+    private Aggregators() {
+    }
+
+    /**
+     * 返り値から数値を得る関数
+     * 応答ピアへ送られるため Serializable とする
+     * @param <R> listener の返り値の型
+     */
+    public interface Projection<R> extends Serializable {
+        /**
+         * @param value listener の返り値 (null でない)
+         * @return
+         */
+        public double valueOf(R value);
+    }
+
+    /**
+     * 応答ピアへ送ることのできる Comparator
+     * @param <R> listener の返り値の型
+     */
+    public interface SerializableComparator<R> extends Comparator<R>, Serializable {
+    }
+
+    /**
+     * null でない返り値の個数を数える
+     * @return
+     */
+    public static <R extends Serializable> AnycastAggregator<R, Long> count() {
+        return new Count<R>();
+    }
+
+    /**
+     * null でない返り値をすべて集める
+     * @return
+     */
+    public static <R extends Serializable> AnycastAggregator<R, ArrayList<R>> toList() {
+        return new ToList<R>();
+    }
+
+    /**
+     * null でない返り値を projection により数値としたものの和を求める
+     * @param projection 返り値から数値を得る関数
+     * @return
+     */
+    public static <R extends Serializable> AnycastAggregator<R, Double> sum(Projection<? super R> projection) {
+        if (projection == null)
+            throw new IllegalArgumentException("projection should not be null");
+        return new Sum<R>(projection);
+    }
+
+    /**
+     * null でない返り値のうち、comparator の順序で大きいものから k 個を集める
+     * @param k 集める個数
+     * @param comparator 返り値の順序
+     * @return 降順のリスト
+     */
+    public static <R extends Serializable> AnycastAggregator<R, ArrayList<R>> topK(int k,
+            SerializableComparator<? super R> comparator) {
+        if (k <= 0)
+            throw new IllegalArgumentException("k should be positive");
+        if (comparator == null)
+            throw new IllegalArgumentException("comparator should not be null");
+        return new TopK<R>(k, comparator);
+    }
+
+    private static class Count<R extends Serializable> implements AnycastAggregator<R, Long> {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        public Long identity() {
+            return 0L;
+        }
+
+        @Override
+        public Long accumulate(Long acc, R value) {
+            return (value == null) ? acc : acc + 1;
+        }
+
+        @Override
+        public Long combine(Long a, Long b) {
+            return a + b;
+        }
+    }
+
+    private static class ToList<R extends Serializable> implements AnycastAggregator<R, ArrayList<R>> {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        public ArrayList<R> identity() {
+            return new ArrayList<>();
+        }
+
+        @Override
+        public ArrayList<R> accumulate(ArrayList<R> acc, R value) {
+            if (value != null)
+                acc.add(value);
+            return acc;
+        }
+
+        @Override
+        public ArrayList<R> combine(ArrayList<R> a, ArrayList<R> b) {
+            a.addAll(b);
+            return a;
+        }
+    }
+
+    private static class Sum<R extends Serializable> implements AnycastAggregator<R, Double> {
+        private static final long serialVersionUID = 1L;
+
+        private final Projection<? super R> projection;
+
+        Sum(Projection<? super R> projection) {
+            this.projection = projection;
+        }
+
+        @Override
+        public Double identity() {
+            return 0.0;
+        }
+
+        @Override
+        public Double accumulate(Double acc, R value) {
+            return (value == null) ? acc : acc + projection.valueOf(value);
+        }
+
+        @Override
+        public Double combine(Double a, Double b) {
+            return a + b;
+        }
+    }
+
+    private static class TopK<R extends Serializable> implements AnycastAggregator<R, ArrayList<R>> {
+        private static final long serialVersionUID = 1L;
+
+        private final int k;
+        private final SerializableComparator<? super R> comparator;
+
+        TopK(int k, SerializableComparator<? super R> comparator) {
+            this.k = k;
+            this.comparator = comparator;
+        }
+
+        @Override
+        public ArrayList<R> identity() {
+            return new ArrayList<>();
+        }
+
+        @Override
+        public ArrayList<R> accumulate(ArrayList<R> acc, R value) {
+            if (value == null)
+                return acc;
+            acc.add(value);
+            return trim(acc);
+        }
+
+        @Override
+        public ArrayList<R> combine(ArrayList<R> a, ArrayList<R> b) {
+            a.addAll(b);
+            return trim(a);
+        }
+
+        /**
+         * 降順に並べ、k 個を越える分を除く
+         */
+        private ArrayList<R> trim(ArrayList<R> list) {
+            Collections.sort(list, Collections.reverseOrder(comparator));
+            while (list.size() > k)
+                list.remove(list.size() - 1);
+            return list;
+        }
+    }
+}
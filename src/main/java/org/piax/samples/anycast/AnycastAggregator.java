@@ -0,0 +1,41 @@
+package org.piax.samples.anycast;
+
+import java.io.Serializable;
+
+/**
+ * Groupcast の結果を集約する関数
+ *
+ * {@link SimpleAnycast#groupcast(String, Serializable, AnycastAggregator)} に与えられ、
+ * クエリとともに応答ピアへ送られる。応答ピアはピア内のハンドルの結果を
+ * {@link #accumulate(Serializable, Serializable)} により集約して返し、
+ * 呼び出し側は各ピアの集約結果を {@link #combine(Serializable, Serializable)} により集約する。
+ * 応答ピアでデシリアライズできるよう、双方のクラスパスにあるクラスで実装すること。
+ * 典型的な集約関数は {@link Aggregators} により得られる。
+ *
+ * @param <R> listener の返り値の型
+ * @param <A> 集約結果の型
+ */
+public interface AnycastAggregator<R extends Serializable, A extends Serializable> extends Serializable {
+    /**
+     * 空の集約結果を得る
+     * 呼び出しごとに新たなインスタンスを返すこと
+     * @return
+     */
+    public A identity();
+
+    /**
+     * listener の返り値を集約結果に加える
+     * @param acc これまでの集約結果
+     * @param value listener の返り値 (null可)
+     * @return 新たな集約結果 (acc を更新して返してもよい)
+     */
+    public A accumulate(A acc, R value);
+
+    /**
+     * 2 つの集約結果をまとめる
+     * @param a 集約結果
+     * @param b 集約結果
+     * @return 新たな集約結果 (a を更新して返してもよい)
+     */
+    public A combine(A a, A b);
+}
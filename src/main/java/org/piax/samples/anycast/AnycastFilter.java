@@ -0,0 +1,25 @@
+package org.piax.samples.anycast;
+
+import java.io.Serializable;
+import java.util.Map;
+
+/**
+ * 応答するハンドルを属性により絞り込む条件
+ *
+ * {@link SimpleAnycast#anycast(String, Serializable, AnycastFilter)} に与えられ、
+ * クエリとともに応答ピアへ送られて評価される。
+ * 条件を満たさないハンドルへの要求は、同じ探索の中で隣接するキーへ転送される。
+ * 応答ピアでデシリアライズできるよう、双方のクラスパスにあるクラスで実装すること。
+ * 典型的な条件は {@link AttributeFilters} により得られる。
+ */
+// Java8
+// @FunctionInterface
+public interface AnycastFilter extends Serializable {
+    /**
+     * ハンドルが条件を満たすか判定する
+     * 応答ピアで要求ごとに呼び出されるため、時間のかかる処理は避けること
+     * @param attributes ハンドルの属性 ({@link SimpleAnycastHandle#setAttribute(String, Serializable)})
+     * @return 条件を満たす場合 true
+     */
+    public boolean accept(Map<String, Serializable> attributes);
+}
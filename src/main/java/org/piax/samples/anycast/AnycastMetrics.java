@@ -0,0 +1,284 @@
+package org.piax.samples.anycast;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * {@link SimpleAnycast} の計測値
+ *
+ * Group ID 単位のカウンタとレイテンシヒストグラム、ハンドル単位のカウンタを保持する。
+ * カウンタはすべてロックフリーで更新される。
+ * 計測が無効の場合、{@link SimpleAnycast} は時刻の取得を含め一切の記録を行わない。
+ * 初期状態はシステムプロパティ {@value #ENABLED_PROPERTY} で指定できる (デフォルト true)。
+ */
+public class AnycastMetrics implements AnycastMetricsMXBean {
+    private static final Logger logger = LoggerFactory.getLogger(AnycastMetrics.class);
+
+    public static final String ENABLED_PROPERTY = "org.piax.samples.anycast.metrics";
+    public static final String JMX_DOMAIN = "org.piax.samples.anycast";
+
+    private volatile boolean enabled = Boolean.parseBoolean(System.getProperty(ENABLED_PROPERTY, "true"));
+
+    private final ConcurrentHashMap<String, GroupCounters> groups = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<SimpleAnycastHandle<?, ?>, HandleCounters> handles = new ConcurrentHashMap<>();
+
+    private ObjectName mbeanName = null;
+
+    /**
+     * Group ID 単位のカウンタ
+     */
+    static class GroupCounters {
+        final AtomicLong requests = new AtomicLong();
+        final AtomicLong nullResults = new AtomicLong();
+        final AtomicLong timeouts = new AtomicLong();
+        final AtomicLong errors = new AtomicLong();
+        final AtomicLong wraparounds = new AtomicLong();
+        final AtomicLong directHits = new AtomicLong();
+        final AtomicLong directMisses = new AtomicLong();
+        final LatencyHistogram latency = new LatencyHistogram();
+
+        final AtomicLong served = new AtomicLong();
+        final AtomicLong listenerErrors = new AtomicLong();
+        final LatencyHistogram listener = new LatencyHistogram();
+    }
+
+    /**
+     * ハンドル単位のカウンタ
+     * ハンドル数が多い場合を考慮し、ヒストグラムは持たない
+     */
+    static class HandleCounters {
+        final AtomicLong served = new AtomicLong();
+        final AtomicLong listenerErrors = new AtomicLong();
+        final AtomicLong listenerNanos = new AtomicLong();
+        final AtomicLong listenerMax = new AtomicLong();
+    }
+
+    @Override
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    @Override
+    public void setEnabled(boolean enabled) {
+        this.enabled = enabled;
+    }
+
+    GroupCounters group(String groupid) {
+        GroupCounters gc = groups.get(groupid);
+        if (gc == null) {
+            GroupCounters newgc = new GroupCounters();
+            gc = groups.putIfAbsent(groupid, newgc);
+            if (gc == null)
+                gc = newgc;
+        }
+        return gc;
+    }
+
+
+    /**
+     * anycast の完了を記録する
+     * @param groupid
+     * @param nanos 所要時間
+     * @param found 結果が null でなければ true
+     */
+    void anycastCompleted(String groupid, long nanos, boolean found) {
+        GroupCounters gc = group(groupid);
+        gc.requests.incrementAndGet();
+        if (!found)
+            gc.nullResults.incrementAndGet();
+        gc.latency.record(nanos);
+    }
+
+    /**
+     * anycast のタイムアウトを記録する
+     * @param groupid
+     * @param nanos 所要時間
+     */
+    void anycastTimedOut(String groupid, long nanos) {
+        GroupCounters gc = group(groupid);
+        gc.requests.incrementAndGet();
+        gc.timeouts.incrementAndGet();
+        gc.latency.record(nanos);
+    }
+
+    /**
+     * anycast の失敗を記録する
+     * @param groupid
+     */
+    void anycastFailed(String groupid) {
+        GroupCounters gc = group(groupid);
+        gc.requests.incrementAndGet();
+        gc.errors.incrementAndGet();
+    }
+
+    /**
+     * wraparound 探索を記録する
+     * @param groupid
+     */
+    void wraparound(String groupid) {
+        group(groupid).wraparounds.incrementAndGet();
+    }
+
+    /**
+     * 応答ピアへの直接要求の結果を記録する
+     * @param groupid
+     * @param hit 応答を得た場合 true
+     */
+    void directRequest(String groupid, boolean hit) {
+        GroupCounters gc = group(groupid);
+        if (hit)
+            gc.directHits.incrementAndGet();
+        else
+            gc.directMisses.incrementAndGet();
+    }
+
+    /**
+     * ハンドルの計測を開始する
+     * {@link SimpleAnycast} の登録処理により呼び出される
+     * @param h
+     */
+    void addHandle(SimpleAnycastHandle<?, ?> h) {
+        handles.putIfAbsent(h, new HandleCounters());
+    }
+
+    /**
+     * listener の呼び出しを記録する
+     * 登録解除後に完了した呼び出しは、グループの計測値にのみ記録する
+     * @param h 呼び出したハンドル
+     * @param nanos listener の実行時間
+     * @param failed listener が例外を投げた場合 true
+     */
+    void listenerCompleted(SimpleAnycastHandle<?, ?> h, long nanos, boolean failed) {
+        GroupCounters gc = group(h.getGroupId());
+        gc.served.incrementAndGet();
+        gc.listener.record(nanos);
+
+        if (failed)
+            gc.listenerErrors.incrementAndGet();
+
+        HandleCounters hc = handles.get(h);
+        if (hc == null)
+            return;
+        hc.served.incrementAndGet();
+        hc.listenerNanos.addAndGet(nanos);
+        long m = hc.listenerMax.get();
+        while (nanos > m && !hc.listenerMax.compareAndSet(m, nanos)) {
+            m = hc.listenerMax.get();
+        }
+        if (failed)
+            hc.listenerErrors.incrementAndGet();
+    }
+
+    /**
+     * ハンドルの計測値を破棄する
+     * {@link SimpleAnycast#unregister(SimpleAnycastHandle)} により呼び出される
+     * @param h
+     */
+    void removeHandle(SimpleAnycastHandle<?, ?> h) {
+        handles.remove(h);
+    }
+
+    private static long micros(long nanos) {
+        return TimeUnit.NANOSECONDS.toMicros(nanos);
+    }
+
+    /**
+     * Group ID の統計情報を取得する
+     * @param groupid
+     * @return 計測値がない場合は null
+     */
+    public GroupStats getGroupStats(String groupid) {
+        GroupCounters gc = groups.get(groupid);
+        if (gc == null)
+            return null;
+        return new GroupStats(groupid, gc.requests.get(), gc.nullResults.get(),
+                gc.timeouts.get(), gc.errors.get(), gc.wraparounds.get(),
+                gc.directHits.get(), gc.directMisses.get(),
+                micros(gc.latency.getPercentile(50)), micros(gc.latency.getPercentile(90)),
+                micros(gc.latency.getPercentile(99)), micros(gc.latency.getMax()),
+                gc.latency.getMean() / 1000.0,
+                gc.served.get(), gc.listenerErrors.get(),
+                micros(gc.listener.getPercentile(50)), micros(gc.listener.getPercentile(99)),
+                micros(gc.listener.getMax()));
+    }
+
+    @Override
+    public List<GroupStats> getGroupStats() {
+        List<GroupStats> result = new ArrayList<>();
+        for (String groupid : groups.keySet()) {
+            GroupStats s = getGroupStats(groupid);
+            if (s != null)
+                result.add(s);
+        }
+        return result;
+    }
+
+    @Override
+    public List<HandleStats> getHandleStats() {
+        List<HandleStats> result = new ArrayList<>();
+        for (Map.Entry<SimpleAnycastHandle<?, ?>, HandleCounters> e : handles.entrySet()) {
+            SimpleAnycastHandle<?, ?> h = e.getKey();
+            HandleCounters hc = e.getValue();
+            long served = hc.served.get();
+            double mean = (served == 0) ? 0.0 : hc.listenerNanos.get() / 1000.0 / served;
+            result.add(new HandleStats(h.getGroupId(), h.getLTKey().getSuffix().toHexString(),
+                    served, hc.listenerErrors.get(), mean, micros(hc.listenerMax.get())));
+        }
+        return result;
+    }
+
+    @Override
+    public void reset() {
+        groups.clear();
+        // 登録中のハンドルの計測は続けるため、エントリは残す
+        for (HandleCounters hc : handles.values()) {
+            hc.served.set(0);
+            hc.listenerErrors.set(0);
+            hc.listenerNanos.set(0);
+            hc.listenerMax.set(0);
+        }
+    }
+
+    /**
+     * プラットフォーム MBeanServer に登録する
+     * ObjectName は {@value #JMX_DOMAIN}:type=SimpleAnycast,name=(name) となる
+     * @param name 登録名 (通常は Service ID)
+     * @throws JMException
+     */
+    public synchronized void registerMBean(String name) throws JMException {
+        if (mbeanName != null)
+            throw new IllegalStateException("already registered as " + mbeanName);
+        ObjectName on = new ObjectName(JMX_DOMAIN + ":type=SimpleAnycast,name=" + ObjectName.quote(name));
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        server.registerMBean(this, on);
+        mbeanName = on;
+        logger.debug("registered MBean {}", on);
+    }
+
+    /**
+     * MBeanServer への登録を解除する
+     * 登録されていない場合は何もしない
+     */
+    public synchronized void unregisterMBean() {
+        if (mbeanName == null)
+            return;
+        try {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(mbeanName);
+        } catch (JMException e) {
+            logger.warn("", e);
+        }
+        mbeanName = null;
+    }
+}
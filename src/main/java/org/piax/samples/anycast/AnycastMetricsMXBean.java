@@ -0,0 +1,37 @@
+package org.piax.samples.anycast;
+
+import java.util.List;
+
+/**
+ * {@link AnycastMetrics} を JMX に公開するための管理インタフェース
+ */
+public interface AnycastMetricsMXBean {
+    /**
+     * 計測が有効か
+     * @return
+     */
+    public boolean isEnabled();
+
+    /**
+     * 計測の有効無効を切り換える
+     * @param enabled
+     */
+    public void setEnabled(boolean enabled);
+
+    /**
+     * Group ID 単位の統計情報
+     * @return
+     */
+    public List<GroupStats> getGroupStats();
+
+    /**
+     * ハンドル単位の統計情報
+     * @return
+     */
+    public List<HandleStats> getHandleStats();
+
+    /**
+     * 計測値を破棄する
+     */
+    public void reset();
+}
@@ -0,0 +1,159 @@
+package org.piax.samples.anycast;
+
+import org.piax.common.Endpoint;
+
+/**
+ * 1 回の anycast のトレース結果
+ *
+ * 時間の内訳は以下の通り。
+ * <ul>
+ * <li>firstPhase : 最初の LowerUpper 探索 (直接要求の場合はその RPC) に要した時間</li>
+ * <li>wraparound : wraparound 探索に要した時間 (wraparound しなかった場合は -1)</li>
+ * <li>receiveDelay : 送信から応答ピアで受信するまでの時間 (ルーティングおよびキューイング)</li>
+ * <li>handling : 応答ピアでのクエリ処理時間 (listener を含む)</li>
+ * <li>listener : 応答ピアでの listener の実行時間</li>
+ * </ul>
+ * receiveDelay はピア間の時計のずれを含むことに注意。
+ */
+public class AnycastTrace {
+    private final long traceId;
+    private final String groupId;
+
+    long firstPhaseNanos = -1;
+    long wraparoundNanos = -1;
+    long totalNanos = -1;
+    boolean direct = false;
+    Endpoint responder = null;
+    SimpleAnycast.ResponderTiming timing = null;
+    boolean found = false;
+    Exception exception = null;
+
+    AnycastTrace(long traceId, String groupId) {
+        this.traceId = traceId;
+        this.groupId = groupId;
+    }
+
+    /**
+     * トレース ID (応答ピアのログとの突き合わせに用いる)
+     * @return
+     */
+    public long getTraceId() {
+        return traceId;
+    }
+
+    /**
+     * Anycast 対象の Group ID
+     * @return
+     */
+    public String getGroupId() {
+        return groupId;
+    }
+
+    /**
+     * 最初の LowerUpper 探索に要した時間 (ナノ秒)
+     * @return
+     */
+    public long getFirstPhaseNanos() {
+        return firstPhaseNanos;
+    }
+
+    /**
+     * キャッシュした応答ピアへの直接要求で応答を得たか
+     * @return
+     */
+    public boolean isDirect() {
+        return direct;
+    }
+
+    /**
+     * wraparound 探索を行ったか
+     * @return
+     */
+    public boolean isWraparound() {
+        return wraparoundNanos >= 0;
+    }
+
+    /**
+     * wraparound 探索に要した時間 (ナノ秒)
+     * @return wraparound しなかった場合は -1
+     */
+    public long getWraparoundNanos() {
+        return wraparoundNanos;
+    }
+
+    /**
+     * anycast 全体に要した時間 (ナノ秒)
+     * @return
+     */
+    public long getTotalNanos() {
+        return totalNanos;
+    }
+
+    /**
+     * 応答したピア
+     * @return 応答がなかった場合は null
+     */
+    public Endpoint getResponder() {
+        return responder;
+    }
+
+    /**
+     * 応答ピアのタイミング情報を含むか
+     * @return
+     */
+    public boolean hasResponderTiming() {
+        return timing != null;
+    }
+
+    /**
+     * 送信から応答ピアでの受信までの時間 (ミリ秒)
+     * ピア間の時計のずれを含む
+     * @return 応答がなかった場合は -1
+     */
+    public long getReceiveDelayMillis() {
+        return (timing == null) ? -1 : timing.receiveDelayMillis;
+    }
+
+    /**
+     * 応答ピアでのクエリ処理時間 (ナノ秒)
+     * @return 応答がなかった場合は -1
+     */
+    public long getHandlingNanos() {
+        return (timing == null) ? -1 : timing.handlingNanos;
+    }
+
+    /**
+     * 応答ピアでの listener の実行時間 (ナノ秒)
+     * @return 応答がなかった場合は -1
+     */
+    public long getListenerNanos() {
+        return (timing == null) ? -1 : timing.listenerNanos;
+    }
+
+    /**
+     * null でない結果を得たか
+     * @return
+     */
+    public boolean isFound() {
+        return found;
+    }
+
+    /**
+     * anycast が例外で終了した場合の例外
+     * @return 正常終了時は null
+     */
+    public Exception getException() {
+        return exception;
+    }
+
+    @Override
+    public String toString() {
+        return "AnycastTrace [traceId=" + Long.toHexString(traceId) + ", groupId=" + groupId
+                + (direct ? ", direct" : "") + ", firstPhaseNanos=" + firstPhaseNanos + ", wraparoundNanos=" + wraparoundNanos
+                + ", totalNanos=" + totalNanos + ", responder=" + responder
+                + ", receiveDelayMillis=" + getReceiveDelayMillis()
+                + ", handlingNanos=" + getHandlingNanos()
+                + ", listenerNanos=" + getListenerNanos()
+                + ", found=" + found + ", exception=" + exception + "]";
+    }
+}
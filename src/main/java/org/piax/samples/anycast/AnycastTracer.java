@@ -0,0 +1,19 @@
+package org.piax.samples.anycast;
+
+/**
+ * Anycast のトレース結果を受け取る SPI
+ *
+ * {@link SimpleAnycast#setTracer(AnycastTracer)} により設定する。
+ * tracer が設定されている間、{@link SimpleAnycast#anycast(String, java.io.Serializable)} は
+ * クエリにトレース情報を付加し、呼び出しごとに {@link #onTrace(AnycastTrace)} を呼び出す。
+ */
+// Java8
+// @FunctionInterface
+public interface AnycastTracer {
+    /**
+     * anycast の完了時 (例外終了を含む) に呼び出される
+     * anycast を呼び出したスレッドで実行されるため、時間のかかる処理は避けること
+     * @param trace トレース結果
+     */
+    public void onTrace(AnycastTrace trace);
+}
@@ -0,0 +1,161 @@
+package org.piax.samples.anycast;
+
+import java.io.Serializable;
+import java.util.Arrays;
+import java.util.Map;
+
+/**
+ * 典型的な {@link AnycastFilter} を得るためのユーティリティ
+ */
+public final class AttributeFilters {
+    private AttributeFilters() {
+    }
+
+    /**
+     * 属性 name を持つハンドルにマッチする条件
+     * @param name 属性名
+     * @return
+     */
+    public static AnycastFilter has(String name) {
+        if (name == null)
+            throw new IllegalArgumentException("name should not be null");
+        return new Has(name);
+    }
+
+    /**
+     * 属性 name の値が value と等しいハンドルにマッチする条件
+     * @param name 属性名
+     * @param value 値
+     * @return
+     */
+    public static AnycastFilter equalTo(String name, Serializable value) {
+        if (name == null)
+            throw new IllegalArgumentException("name should not be null");
+        if (value == null)
+            throw new IllegalArgumentException("value should not be null");
+        return new EqualTo(name, value);
+    }
+
+    /**
+     * 属性 name の値が min 以上のハンドルにマッチする条件
+     * 値が min と比較できない型の場合はマッチしない
+     * @param name 属性名
+     * @param min 下限 (この値を含む)
+     * @return
+     */
+    public static <V extends Comparable<V> & Serializable> AnycastFilter atLeast(String name, V min) {
+        if (name == null)
+            throw new IllegalArgumentException("name should not be null");
+        if (min == null)
+            throw new IllegalArgumentException("min should not be null");
+        return new AtLeast<V>(name, min);
+    }
+
+    /**
+     * すべての条件を満たすハンドルにマッチする条件
+     * @param filters
+     * @return
+     */
+    public static AnycastFilter and(AnycastFilter... filters) {
+        if (filters == null)
+            throw new IllegalArgumentException("filters should not be null");
+        for (AnycastFilter f : filters) {
+            if (f == null)
+                throw new IllegalArgumentException("filters should not contain null");
+        }
+        return new And(filters.clone());
+    }
+
+    private static class Has implements AnycastFilter {
+        private static final long serialVersionUID = 1L;
+
+        private final String name;
+
+        Has(String name) {
+            this.name = name;
+        }
+
+        @Override
+        public boolean accept(Map<String, Serializable> attributes) {
+            return attributes.containsKey(name);
+        }
+
+        @Override
+        public String toString() {
+            return "has(" + name + ")";
+        }
+    }
+
+    private static class EqualTo implements AnycastFilter {
+        private static final long serialVersionUID = 1L;
+
+        private final String name;
+        private final Serializable value;
+
+        EqualTo(String name, Serializable value) {
+            this.name = name;
+            this.value = value;
+        }
+
+        @Override
+        public boolean accept(Map<String, Serializable> attributes) {
+            return value.equals(attributes.get(name));
+        }
+
+        @Override
+        public String toString() {
+            return name + "==" + value;
+        }
+    }
+
+    private static class AtLeast<V extends Comparable<V> & Serializable> implements AnycastFilter {
+        private static final long serialVersionUID = 1L;
+
+        private final String name;
+        private final V min;
+
+        AtLeast(String name, V min) {
+            this.name = name;
+            this.min = min;
+        }
+
+        @Override
+        public boolean accept(Map<String, Serializable> attributes) {
+            Object v = attributes.get(name);
+            if (v == null || v.getClass() != min.getClass())
+                return false;
+            @SuppressWarnings("unchecked")
+            V val = (V) v;
+            return val.compareTo(min) >= 0;
+        }
+
+        @Override
+        public String toString() {
+            return name + ">=" + min;
+        }
+    }
+
+    private static class And implements AnycastFilter {
+        private static final long serialVersionUID = 1L;
+
+        private final AnycastFilter[] filters;
+
+        And(AnycastFilter[] filters) {
+            this.filters = filters;
+        }
+
+        @Override
+        public boolean accept(Map<String, Serializable> attributes) {
+            for (AnycastFilter f : filters) {
+                if (!f.accept(attributes))
+                    return false;
+            }
+            return true;
+        }
+
+        @Override
+        public String toString() {
+            return "and" + Arrays.toString(filters);
+        }
+    }
+}
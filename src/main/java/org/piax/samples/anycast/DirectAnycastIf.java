@@ -0,0 +1,32 @@
+package org.piax.samples.anycast;
+
+import java.io.Serializable;
+
+import org.piax.gtrans.RPCException;
+import org.piax.gtrans.RPCIf;
+import org.piax.gtrans.RemoteCallable;
+import org.piax.gtrans.RemoteValue;
+
+/**
+ * SkipGraph を経由せず、応答ピアに直接 anycast 要求を送るための RPC インタフェース
+ *
+ * {@link SimpleAnycast#enableDirectRequest(org.piax.gtrans.ChannelTransport)} により登録される。
+ */
+public interface DirectAnycastIf extends RPCIf {
+    /**
+     * クエリの探索対象キーに対応するハンドルで要求を処理する
+     * @param query {@link SimpleAnycast} のクエリ
+     * @return 応答 対応する有効なハンドルがない場合は null
+     * @throws RPCException
+     */
+    @RemoteCallable
+    public RemoteValue<?> request(Serializable query) throws RPCException;
+
+    /**
+     * RTT 測定用の probe
+     * @return 応答ピアの locality tag (null可)
+     * @throws RPCException
+     */
+    @RemoteCallable
+    public String ping() throws RPCException;
+}
@@ -0,0 +1,75 @@
+package org.piax.samples.anycast;
+
+import java.util.Locale;
+
+/**
+ * グループのサイズ (ハンドル数) の推定値
+ *
+ * {@link SimpleAnycast#estimateGroupSize(String)} により得られる。
+ */
+public class GroupSizeEstimate {
+    private final String groupid;
+    private final double estimate;
+    private final int samples;
+
+    GroupSizeEstimate(String groupid, double estimate, int samples) {
+        this.groupid = groupid;
+        this.estimate = estimate;
+        this.samples = samples;
+    }
+
+    /**
+     * Group ID を取得する
+     * @return
+     */
+    public String getGroupId() {
+        return groupid;
+    }
+
+    /**
+     * 推定値を取得する
+     * @return
+     */
+    public double getEstimate() {
+        return estimate;
+    }
+
+    /**
+     * 推定に用いた標本数を取得する
+     * @return
+     */
+    public int getSamples() {
+        return samples;
+    }
+
+    /**
+     * 推定値の相対標準誤差を取得する
+     * @return 標本数が 2 以下の場合は Double.POSITIVE_INFINITY
+     */
+    public double getRelativeError() {
+        return (samples > 2) ? 1.0 / Math.sqrt(samples - 2) : Double.POSITIVE_INFINITY;
+    }
+
+    /**
+     * 95% 信頼区間の下限を取得する
+     * @return
+     */
+    public double getLower() {
+        return Math.max(1.0, estimate * (1.0 - 1.96 * getRelativeError()));
+    }
+
+    /**
+     * 95% 信頼区間の上限を取得する
+     * @return
+     */
+    public double getUpper() {
+        return estimate * (1.0 + 1.96 * getRelativeError());
+    }
+
+    @Override
+    public String toString() {
+        return "GroupSizeEstimate [groupid=" + groupid + ", estimate=" + String.format(Locale.ROOT, "%.1f", estimate)
+                + ", samples=" + samples + ", 95%=[" + String.format(Locale.ROOT, "%.1f", getLower()) + ", "
+                + String.format(Locale.ROOT, "%.1f", getUpper()) + "]]";
+    }
+}
@@ -0,0 +1,123 @@
+package org.piax.samples.anycast;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.piax.common.Id;
+
+/**
+ * 探索キーと応答したキーの間隔からグループのサイズを推定する
+ *
+ * suffix は一様乱数であるため、N 個のキーがある区間 [0, 1) において、ランダムな探索キーから
+ * それ以下の最大のキーまでの間隔 g は Beta(1, N) に従う。-ln(1 - g) は Exp(N) に従うため、
+ * 直近 window 個の標本の和 S から N の不偏推定値 (k - 1) / S を得る。
+ * 間隔は wraparound を含め suffix の差を区間長で割った値 (剰余) とし、suffix の上位 53 ビットのみを用いる。
+ * キーの配置が変わらない間の標本は配置に依存するため、グループが小さい場合の誤差は
+ * {@link GroupSizeEstimate#getRelativeError()} より大きくなりうる。
+ */
+class GroupSizeEstimator {
+    private final int window;
+    private final LinkedHashMap<String, Samples> groups;
+
+    /**
+     * グループごとの直近の標本
+     */
+    private static class Samples {
+        final double[] values;
+        int count = 0;
+        int next = 0;
+        double sum = 0.0;
+
+        Samples(int window) {
+            this.values = new double[window];
+        }
+
+        void add(double v) {
+            if (count == values.length) {
+                sum -= values[next];
+            } else {
+                count++;
+            }
+            values[next] = v;
+            sum += v;
+            next = (next + 1) % values.length;
+        }
+    }
+
+    /**
+     * @param maxGroups 推定値を保持する Group ID の最大数
+     * @param window グループあたりに保持する標本数
+     */
+    GroupSizeEstimator(final int maxGroups, int window) {
+        if (maxGroups <= 0)
+            throw new IllegalArgumentException("maxGroups should be positive");
+        if (window <= 0)
+            throw new IllegalArgumentException("window should be positive");
+        this.window = window;
+        this.groups = new LinkedHashMap<String, Samples>(16, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Samples> eldest) {
+                return size() > maxGroups;
+            }
+        };
+    }
+
+    /**
+     * 探索キーと応答したキーの組を標本として記録する
+     * @param searchkey 探索キー
+     * @param matched 探索キー以下の最大のキー (wraparound した場合はグループ内の最大のキー)
+     */
+    void record(SimpleAnycast.LTKey searchkey, SimpleAnycast.LTKey matched) {
+        if (!searchkey.isSamePrefix(matched) || searchkey.getSuffix() == null || matched.getSuffix() == null)
+            return;
+        double gap = fraction(searchkey.getSuffix()) - fraction(matched.getSuffix());
+        if (gap < 0.0)
+            gap += 1.0;
+        if (gap >= 1.0)
+            return;
+        double v = -Math.log1p(-gap);
+        synchronized (this) {
+            Samples s = groups.get(searchkey.getPrefix());
+            if (s == null) {
+                s = new Samples(window);
+                groups.put(searchkey.getPrefix(), s);
+            }
+            s.add(v);
+        }
+    }
+
+    /**
+     * 推定値を得る
+     * @param groupid
+     * @return 標本がない場合は null
+     */
+    synchronized GroupSizeEstimate estimate(String groupid) {
+        Samples s = groups.get(groupid);
+        if (s == null || s.count == 0)
+            return null;
+        double n;
+        if (s.sum <= 0.0)
+            n = Double.POSITIVE_INFINITY;
+        else if (s.count == 1)
+            n = 1.0 / s.sum;
+        else
+            n = (s.count - 1) / s.sum;
+        return new GroupSizeEstimate(groupid, n, s.count);
+    }
+
+    /**
+     * suffix を [0, 1) の値に変換する
+     * @param suffix
+     * @return
+     */
+    private static double fraction(Id suffix) {
+        byte[] b = suffix._getBytes();
+        long v = 0;
+        for (int i = 0; i < 8; i++) {
+            v = (v << 8) | ((i < b.length) ? (b[i] & 0xff) : 0);
+        }
+        return (v >>> 11) * 0x1.0p-53;
+    }
+}
@@ -0,0 +1,160 @@
+package org.piax.samples.anycast;
+
+import java.beans.ConstructorProperties;
+
+/**
+ * Group ID 単位の統計情報のスナップショット
+ *
+ * Anycast 側 (requests 〜 latency) と被 Anycast 側 (served 〜 listener) の双方の値を持つ。
+ * 時間の単位はマイクロ秒。
+ */
+public class GroupStats {
+    private final String groupId;
+    private final long requests;
+    private final long nullResults;
+    private final long timeouts;
+    private final long errors;
+    private final long wraparounds;
+    private final long directHits;
+    private final long directMisses;
+    private final long latencyP50;
+    private final long latencyP90;
+    private final long latencyP99;
+    private final long latencyMax;
+    private final double latencyMean;
+    private final long served;
+    private final long listenerErrors;
+    private final long listenerP50;
+    private final long listenerP99;
+    private final long listenerMax;
+
+    @ConstructorProperties({ "groupId", "requests", "nullResults", "timeouts", "errors", "wraparounds",
+            "directHits", "directMisses", "latencyP50", "latencyP90", "latencyP99", "latencyMax", "latencyMean",
+            "served", "listenerErrors", "listenerP50", "listenerP99", "listenerMax" })
+    public GroupStats(String groupId, long requests, long nullResults, long timeouts, long errors,
+            long wraparounds, long directHits, long directMisses, long latencyP50, long latencyP90, long latencyP99, long latencyMax,
+            double latencyMean, long served, long listenerErrors, long listenerP50, long listenerP99,
+            long listenerMax) {
+        this.groupId = groupId;
+        this.requests = requests;
+        this.nullResults = nullResults;
+        this.timeouts = timeouts;
+        this.errors = errors;
+        this.wraparounds = wraparounds;
+        this.directHits = directHits;
+        this.directMisses = directMisses;
+        this.latencyP50 = latencyP50;
+        this.latencyP90 = latencyP90;
+        this.latencyP99 = latencyP99;
+        this.latencyMax = latencyMax;
+        this.latencyMean = latencyMean;
+        this.served = served;
+        this.listenerErrors = listenerErrors;
+        this.listenerP50 = listenerP50;
+        this.listenerP99 = listenerP99;
+        this.listenerMax = listenerMax;
+    }
+
+    /** Group ID */
+    public String getGroupId() {
+        return groupId;
+    }
+
+    /** anycast の呼び出し回数 */
+    public long getRequests() {
+        return requests;
+    }
+
+    /** anycast が null を返した回数 */
+    public long getNullResults() {
+        return nullResults;
+    }
+
+    /** anycast が NetworkTimeoutException となった回数 */
+    public long getTimeouts() {
+        return timeouts;
+    }
+
+    /** anycast がタイムアウト以外の IOException となった回数 */
+    public long getErrors() {
+        return errors;
+    }
+
+    /** wraparound 探索を行った回数 */
+    public long getWraparounds() {
+        return wraparounds;
+    }
+
+    /** キャッシュした応答ピアへの直接要求で応答を得た回数 */
+    public long getDirectHits() {
+        return directHits;
+    }
+
+    /** キャッシュした応答ピアへの直接要求に失敗し、SkipGraph 上の探索を行った回数 */
+    public long getDirectMisses() {
+        return directMisses;
+    }
+
+    /** anycast レイテンシの中央値 */
+    public long getLatencyP50() {
+        return latencyP50;
+    }
+
+    /** anycast レイテンシの 90 パーセンタイル値 */
+    public long getLatencyP90() {
+        return latencyP90;
+    }
+
+    /** anycast レイテンシの 99 パーセンタイル値 */
+    public long getLatencyP99() {
+        return latencyP99;
+    }
+
+    /** anycast レイテンシの最大値 */
+    public long getLatencyMax() {
+        return latencyMax;
+    }
+
+    /** anycast レイテンシの平均値 */
+    public double getLatencyMean() {
+        return latencyMean;
+    }
+
+    /** このピアで listener を呼び出した回数 */
+    public long getServed() {
+        return served;
+    }
+
+    /** listener が例外を投げた回数 */
+    public long getListenerErrors() {
+        return listenerErrors;
+    }
+
+    /** listener 実行時間の中央値 */
+    public long getListenerP50() {
+        return listenerP50;
+    }
+
+    /** listener 実行時間の 99 パーセンタイル値 */
+    public long getListenerP99() {
+        return listenerP99;
+    }
+
+    /** listener 実行時間の最大値 */
+    public long getListenerMax() {
+        return listenerMax;
+    }
+
+    @Override
+    public String toString() {
+        return "GroupStats [groupId=" + groupId + ", requests=" + requests
+                + ", nullResults=" + nullResults + ", timeouts=" + timeouts
+                + ", errors=" + errors + ", wraparounds=" + wraparounds
+                + ", directHits=" + directHits + ", directMisses=" + directMisses
+                + ", latency(us) p50=" + latencyP50 + " p90=" + latencyP90
+                + " p99=" + latencyP99 + " max=" + latencyMax
+                + ", served=" + served + ", listenerErrors=" + listenerErrors
+                + ", listener(us) p50=" + listenerP50 + " p99=" + listenerP99
+                + " max=" + listenerMax + "]";
+    }
+}
@@ -0,0 +1,61 @@
+package org.piax.samples.anycast;
+
+import java.io.Serializable;
+
+/**
+ * Groupcast の結果
+ *
+ * @param <A> 集約結果の型
+ */
+public class GroupcastResult<A extends Serializable> {
+    private final A value;
+    private final int responders;
+    private final int members;
+    private final boolean complete;
+
+    GroupcastResult(A value, int responders, int members, boolean complete) {
+        this.value = value;
+        this.responders = responders;
+        this.members = members;
+        this.complete = complete;
+    }
+
+    /**
+     * 集約結果を取得する
+     * @return
+     */
+    public A getValue() {
+        return value;
+    }
+
+    /**
+     * 応答したピア数を取得する
+     * @return
+     */
+    public int getResponders() {
+        return responders;
+    }
+
+    /**
+     * listener を呼び出したハンドル数を取得する
+     * @return
+     */
+    public int getMembers() {
+        return members;
+    }
+
+    /**
+     * すべての応答を得たか
+     * タイムアウトや応答ピアでの例外が生じた場合は false となり、集約結果は一部のピアのみのものとなる
+     * @return
+     */
+    public boolean isComplete() {
+        return complete;
+    }
+
+    @Override
+    public String toString() {
+        return "GroupcastResult [value=" + value + ", responders=" + responders
+                + ", members=" + members + ", complete=" + complete + "]";
+    }
+}
@@ -0,0 +1,21 @@
+package org.piax.samples.anycast;
+
+import java.io.Serializable;
+
+/**
+ * ジャーナルからハンドルを復元する際の callback
+ *
+ * {@link SimpleAnycast#restore(HandleRestorer)} により、復元するハンドルごとに呼び出される。
+ * @param <T> Anycast 時の引数の型
+ * @param <R> Anycast 時の返り値の型
+ */
+// Java8
+// @FunctionInterface
+public interface HandleRestorer<T extends Serializable, R extends Serializable> {
+    /**
+     * 復元するハンドルの listener を得る
+     * @param groupid 復元するハンドルの Group ID
+     * @return 復元するハンドルの listener (null可)
+     */
+    public SimpleAnycastListener<T, R> listenerFor(String groupid);
+}
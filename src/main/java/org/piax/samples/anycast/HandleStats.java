@@ -0,0 +1,64 @@
+package org.piax.samples.anycast;
+
+import java.beans.ConstructorProperties;
+
+/**
+ * ハンドル単位の統計情報のスナップショット
+ * 時間の単位はマイクロ秒。
+ */
+public class HandleStats {
+    private final String groupId;
+    private final String handleKey;
+    private final long served;
+    private final long listenerErrors;
+    private final double listenerMean;
+    private final long listenerMax;
+
+    @ConstructorProperties({ "groupId", "handleKey", "served", "listenerErrors", "listenerMean", "listenerMax" })
+    public HandleStats(String groupId, String handleKey, long served, long listenerErrors,
+            double listenerMean, long listenerMax) {
+        this.groupId = groupId;
+        this.handleKey = handleKey;
+        this.served = served;
+        this.listenerErrors = listenerErrors;
+        this.listenerMean = listenerMean;
+        this.listenerMax = listenerMax;
+    }
+
+    /** Group ID */
+    public String getGroupId() {
+        return groupId;
+    }
+
+    /** ハンドルの suffix (16進表記) */
+    public String getHandleKey() {
+        return handleKey;
+    }
+
+    /** このハンドルの listener を呼び出した回数 */
+    public long getServed() {
+        return served;
+    }
+
+    /** listener が例外を投げた回数 */
+    public long getListenerErrors() {
+        return listenerErrors;
+    }
+
+    /** listener 実行時間の平均値 */
+    public double getListenerMean() {
+        return listenerMean;
+    }
+
+    /** listener 実行時間の最大値 */
+    public long getListenerMax() {
+        return listenerMax;
+    }
+
+    @Override
+    public String toString() {
+        return "HandleStats [groupId=" + groupId + ", handleKey=" + handleKey
+                + ", served=" + served + ", listenerErrors=" + listenerErrors
+                + ", listener(us) mean=" + listenerMean + " max=" + listenerMax + "]";
+    }
+}
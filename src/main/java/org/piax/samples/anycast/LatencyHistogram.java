@@ -0,0 +1,131 @@
+package org.piax.samples.anycast;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * ロックフリーなレイテンシヒストグラム
+ *
+ * HdrHistogram と同様に、2 の冪ごとのバケットを SUB_BUCKET_BITS ビットで線形に分割する。
+ * 相対誤差は 1 / 2^SUB_BUCKET_BITS (12.5%) 以内となる。
+ * 値はナノ秒で記録し、HIGHEST_TRACKABLE を越える値は HIGHEST_TRACKABLE として扱う。
+ */
+public class LatencyHistogram {
+    private static final int SUB_BUCKET_BITS = 3;
+    private static final int SUB_BUCKET_COUNT = 1 << SUB_BUCKET_BITS;
+    private static final int LINEAR_LIMIT = SUB_BUCKET_COUNT << 1;
+
+    /** 記録可能な最大値 (約 18 分) */
+    public static final long HIGHEST_TRACKABLE = (1L << 40) - 1;
+
+    private final AtomicLongArray counts = new AtomicLongArray(indexOf(HIGHEST_TRACKABLE) + 1);
+    private final AtomicLong total = new AtomicLong();
+    private final AtomicLong sum = new AtomicLong();
+    private final AtomicLong max = new AtomicLong();
+
+    /**
+     * 値に対応するバケット位置
+     * @param value 0 以上 HIGHEST_TRACKABLE 以下の値
+     * @return
+     */
+    static int indexOf(long value) {
+        if (value < LINEAR_LIMIT)
+            return (int) value;
+        int exp = 63 - Long.numberOfLeadingZeros(value);
+        int shift = exp - SUB_BUCKET_BITS;
+        return (shift << SUB_BUCKET_BITS) + (int) (value >>> shift);
+    }
+
+    /**
+     * バケットに含まれる値の上限 (この値を含む)
+     * @param index バケット位置
+     * @return
+     */
+    static long upperBoundOf(int index) {
+        if (index < LINEAR_LIMIT)
+            return index;
+        int shift = (index >>> SUB_BUCKET_BITS) - 1;
+        long sub = (index & (SUB_BUCKET_COUNT - 1)) + SUB_BUCKET_COUNT;
+        return ((sub + 1) << shift) - 1;
+    }
+
+    /**
+     * 値を記録する
+     * @param nanos 記録する値 (ナノ秒) 負値は 0 として扱う
+     */
+    public void record(long nanos) {
+        if (nanos < 0)
+            nanos = 0;
+        else if (nanos > HIGHEST_TRACKABLE)
+            nanos = HIGHEST_TRACKABLE;
+
+        counts.incrementAndGet(indexOf(nanos));
+        total.incrementAndGet();
+        sum.addAndGet(nanos);
+        long m = max.get();
+        while (nanos > m && !max.compareAndSet(m, nanos)) {
+            m = max.get();
+        }
+    }
+
+    /**
+     * 記録された値の個数
+     * @return
+     */
+    public long getCount() {
+        return total.get();
+    }
+
+    /**
+     * 記録された値の最大値 (ナノ秒)
+     * @return
+     */
+    public long getMax() {
+        return max.get();
+    }
+
+    /**
+     * 記録された値の平均値 (ナノ秒)
+     * @return 値が記録されていない場合は 0
+     */
+    public double getMean() {
+        long n = total.get();
+        return (n == 0) ? 0.0 : (double) sum.get() / n;
+    }
+
+    /**
+     * パーセンタイル値を求める
+     * 記録中に呼ばれた場合、結果は近似値となる
+     * @param percentile 0.0 以上 100.0 以下
+     * @return パーセンタイル値 (ナノ秒) 値が記録されていない場合は 0
+     */
+    public long getPercentile(double percentile) {
+        if (percentile < 0.0 || percentile > 100.0)
+            throw new IllegalArgumentException("percentile should be in [0, 100]");
+
+        long n = total.get();
+        if (n == 0)
+            return 0;
+        long rank = Math.max(1, (long) Math.ceil(percentile / 100.0 * n));
+        long cumulative = 0;
+        for (int i = 0; i < counts.length(); i++) {
+            cumulative += counts.get(i);
+            if (cumulative >= rank) {
+                return Math.min(upperBoundOf(i), max.get());
+            }
+        }
+        return max.get();
+    }
+
+    /**
+     * 記録された値を破棄する
+     */
+    public void reset() {
+        for (int i = 0; i < counts.length(); i++) {
+            counts.set(i, 0);
+        }
+        total.set(0);
+        sum.set(0);
+        max.set(0);
+    }
+}
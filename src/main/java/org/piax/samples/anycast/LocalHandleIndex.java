@@ -0,0 +1,139 @@
+package org.piax.samples.anycast;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ThreadLocalRandom;
+
+import org.piax.common.Id;
+
+/**
+ * ピア内のハンドルを Group ID ごとにキー順で保持する索引
+ *
+ * 同一ピア上の同じグループのハンドルから、1 つのハンドルを O(log n) で選択するために用いる。
+ * 追加と削除は {@link SimpleAnycast} の登録処理の中で行われる。
+ *
+ * @param <T> Anycast 時の引数の型
+ * @param <R> Anycast 時の返り値の型
+ */
+class LocalHandleIndex<T extends Serializable, R extends Serializable> {
+    /** 選択時に調べるハンドル数の上限 */
+    static final int MAX_PROBES = 16;
+
+    /** least outstanding 選択で比較するハンドル数 */
+    static final int LEAST_OUTSTANDING_SAMPLES = 2;
+
+    private final ConcurrentHashMap<String, Group<T, R>> groups = new ConcurrentHashMap<>();
+
+    /**
+     * グループ内のハンドルと round robin の位置
+     */
+    private static class Group<T extends Serializable, R extends Serializable> {
+        final ConcurrentSkipListMap<SimpleAnycast.LTKey, SimpleAnycastHandle<T, R>> handles = new ConcurrentSkipListMap<>();
+        volatile SimpleAnycast.LTKey cursor = null;    // 直前に選択したキー
+    }
+
+    void add(SimpleAnycastHandle<T, R> h) {
+        Group<T, R> g = groups.get(h.getGroupId());
+        if (g == null) {
+            Group<T, R> newg = new Group<>();
+            g = groups.putIfAbsent(h.getGroupId(), newg);
+            if (g == null)
+                g = newg;
+        }
+        g.handles.put(h.getLTKey(), h);
+    }
+
+    void remove(SimpleAnycastHandle<T, R> h) {
+        Group<T, R> g = groups.get(h.getGroupId());
+        if (g == null)
+            return;
+        g.handles.remove(h.getLTKey());
+        if (g.handles.isEmpty())
+            groups.remove(h.getGroupId(), g);
+    }
+
+    /**
+     * groupid のハンドルから、被探索状態かつ有効なものを 1 つ選択する
+     * @param groupid Group ID
+     * @param mode 選択方法 (ALL 以外)
+     * @return 該当するハンドルが見つからない場合は null
+     */
+    SimpleAnycastHandle<T, R> select(String groupid, SimpleAnycast.DispatchMode mode) {
+        Group<T, R> g = groups.get(groupid);
+        if (g == null)
+            return null;
+        if (mode == SimpleAnycast.DispatchMode.LEAST_OUTSTANDING) {
+            SimpleAnycastHandle<T, R> h = selectLeastOutstanding(groupid, g);
+            if (h != null)
+                return h;
+        }
+        return selectRoundRobin(g);
+    }
+
+    /**
+     * groupid のすべてのハンドルを得る
+     * @param groupid Group ID
+     * @return キー順のハンドル (呼び出し時点の複製)
+     */
+    List<SimpleAnycastHandle<T, R>> handles(String groupid) {
+        Group<T, R> g = groups.get(groupid);
+        if (g == null)
+            return Collections.emptyList();
+        return new ArrayList<>(g.handles.values());
+    }
+
+    /**
+     * 要求を受け付けるハンドルか
+     * {@link SimpleAnycastHandle#setUndiscoverable()} により探索されない状態のハンドルは選択しない
+     */
+    private static boolean isSelectable(SimpleAnycastHandle<?, ?> h) {
+        return h.isDiscoverable() && h.isEnabled();
+    }
+
+    /**
+     * キーの次の位置から順に有効なハンドルを探す
+     */
+    private SimpleAnycastHandle<T, R> selectRoundRobin(Group<T, R> g) {
+        SimpleAnycast.LTKey cur = g.cursor;
+        for (int i = 0; i < MAX_PROBES; i++) {
+            Map.Entry<SimpleAnycast.LTKey, SimpleAnycastHandle<T, R>> e =
+                    (cur == null) ? null : g.handles.higherEntry(cur);
+            if (e == null)
+                e = g.handles.firstEntry();
+            if (e == null)
+                return null;
+            cur = e.getKey();
+            if (isSelectable(e.getValue())) {
+                g.cursor = cur;
+                return e.getValue();
+            }
+        }
+        return null;
+    }
+
+    /**
+     * ランダムに選んだハンドルのうち、処理中の要求が最も少ないものを選ぶ (power of two choices)
+     */
+    private SimpleAnycastHandle<T, R> selectLeastOutstanding(String groupid, Group<T, R> g) {
+        SimpleAnycastHandle<T, R> best = null;
+        for (int i = 0; i < LEAST_OUTSTANDING_SAMPLES; i++) {
+            byte[] suffix = new byte[SimpleAnycast.suffixLength];
+            ThreadLocalRandom.current().nextBytes(suffix);
+            Map.Entry<SimpleAnycast.LTKey, SimpleAnycastHandle<T, R>> e =
+                    g.handles.ceilingEntry(new SimpleAnycast.LTKey(groupid, new Id(suffix)));
+            if (e == null)
+                e = g.handles.firstEntry();
+            if (e == null)
+                return null;
+            SimpleAnycastHandle<T, R> h = e.getValue();
+            if (isSelectable(h) && (best == null || h.getOutstanding() < best.getOutstanding()))
+                best = h;
+        }
+        return best;
+    }
+}
@@ -0,0 +1,64 @@
+package org.piax.samples.anycast;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * キャッシュした応答ピアから RTT の小さいものを優先して選ぶ
+ *
+ * 各候補のスコアを RTT 推定値とし、自ピアと同じ locality tag を持つ候補はスコアを
+ * LOCAL_TAG_FACTOR 倍する。最良スコアの (1 + slack) 倍以内の候補から一様に選ぶことで、
+ * 近いピアを優先しつつ負荷を分散する。RTT が未測定の候補はスコア 0 として扱い、
+ * 優先的に選んで測定値を得る。
+ */
+class LocalitySelector {
+    /** 同じ locality tag を持つ候補のスコアに掛ける係数 */
+    static final double LOCAL_TAG_FACTOR = 0.5;
+
+    /** RTT 推定値を保持するピア数の上限 */
+    static final int MAX_PEERS = 4096;
+
+    final RttEstimator rtt = new RttEstimator(MAX_PEERS);
+    private final double slack;
+
+    /**
+     * @param slack 最良スコアからの許容幅 (0 で常に最良の候補を選ぶ)
+     */
+    LocalitySelector(double slack) {
+        if (slack < 0)
+            throw new IllegalArgumentException("slack should not be negative");
+        this.slack = slack;
+    }
+
+    /**
+     * 候補から 1 つを選ぶ
+     * @param entries 候補 (null可)
+     * @param localTag 自ピアの locality tag (null可)
+     * @return 候補がない場合は null
+     */
+    ResponderCache.Entry select(List<ResponderCache.Entry> entries, String localTag) {
+        if (entries == null || entries.isEmpty())
+            return null;
+
+        double[] scores = new double[entries.size()];
+        double best = Double.MAX_VALUE;
+        for (int i = 0; i < scores.length; i++) {
+            ResponderCache.Entry e = entries.get(i);
+            long est = rtt.estimate(e.endpoint);
+            double score = (est < 0) ? 0.0 : est;
+            if (localTag != null && localTag.equals(e.localityTag))
+                score *= LOCAL_TAG_FACTOR;
+            scores[i] = score;
+            best = Math.min(best, score);
+        }
+
+        double threshold = best * (1.0 + slack);
+        List<ResponderCache.Entry> candidates = new ArrayList<>();
+        for (int i = 0; i < scores.length; i++) {
+            if (scores[i] <= threshold)
+                candidates.add(entries.get(i));
+        }
+        return candidates.get(ThreadLocalRandom.current().nextInt(candidates.size()));
+    }
+}
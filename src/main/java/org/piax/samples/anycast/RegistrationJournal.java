@@ -0,0 +1,293 @@
+package org.piax.samples.anycast;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.piax.common.Id;
+
+/**
+ * ハンドルの登録の追記型ジャーナル
+ *
+ * ハンドルのキー (Group ID と suffix) と被探索状態を memory-mapped ファイルに追記する。
+ * 書き込みはページキャッシュへの書き込みのみであり、プロセスの異常終了では失われないが、
+ * OS の異常終了に備える場合は {@link #force()} を呼ぶこと。
+ *
+ * ファイル形式は MAGIC に続くレコードの並びで、レコードは
+ * op (1 byte) | Group ID 長 (2 bytes) | Group ID (UTF-8) | suffix 長 (1 byte) | suffix
+ * からなる。op が 0 の位置をジャーナルの終端とする。
+ * op は本体を書いた後に書くため、書き込み途中のレコードは読み飛ばされる。
+ * オープン時に有効なエントリのみを書き出した新たなファイルに置き換える。
+ * 実行中も、上書きや削除により無効となったレコードが有効なエントリの数を超え、
+ * COMPACT_MIN_RECORDS 以上となった場合、または mapped 領域が一杯になった時点で無効なレコードが
+ * 有効なエントリの数を超えている場合に、同様に置き換える。
+ */
+class RegistrationJournal {
+    private static final int MAGIC = 0x53414a31;  // "SAJ1"
+    private static final byte OP_END = 0;
+    private static final byte OP_DISCOVERABLE = 1;
+    private static final byte OP_UNDISCOVERABLE = 2;
+    private static final byte OP_REMOVE = 3;
+    private static final int INITIAL_CAPACITY = 1 << 20;
+
+    /**
+     * 実行中に置き換えを行う無効なレコード数の下限
+     */
+    static int COMPACT_MIN_RECORDS = 1024;
+
+    private final File file;
+    private RandomAccessFile raf;
+    private FileChannel channel;
+    private MappedByteBuffer buf;
+    private final TreeMap<SimpleAnycast.LTKey, Boolean> previous;
+
+    /**
+     * 現在の有効なエントリ
+     */
+    private final TreeMap<SimpleAnycast.LTKey, Boolean> live;
+
+    /**
+     * ファイル中のレコード数
+     */
+    private int records = 0;
+
+    private RegistrationJournal(File file, TreeMap<SimpleAnycast.LTKey, Boolean> previous) throws IOException {
+        this.file = file;
+        this.previous = previous;
+        this.live = new TreeMap<>(previous);
+        map();
+    }
+
+    /**
+     * ファイルを開き、mapped 領域を得る
+     * @throws IOException
+     */
+    private void map() throws IOException {
+        raf = new RandomAccessFile(file, "rw");
+        channel = raf.getChannel();
+        long capacity = INITIAL_CAPACITY;
+        while (capacity < channel.size())
+            capacity <<= 1;
+        buf = channel.map(FileChannel.MapMode.READ_WRITE, 0, capacity);
+    }
+
+    /**
+     * ジャーナルを開く
+     * 既存のジャーナルがある場合は読み込み、有効なエントリのみを書き出したものに置き換える
+     * @param file ジャーナルのファイル
+     * @return
+     * @throws IOException
+     */
+    static RegistrationJournal open(File file) throws IOException {
+        if (file == null)
+            throw new IllegalArgumentException("file should not be null");
+
+        TreeMap<SimpleAnycast.LTKey, Boolean> entries = file.exists() ? read(file) : new TreeMap<SimpleAnycast.LTKey, Boolean>();
+        rewrite(file, entries);
+
+        RegistrationJournal result = new RegistrationJournal(file, entries);
+        result.seekEnd();
+        result.records = entries.size();
+        return result;
+    }
+
+    /**
+     * 有効なエントリのみを書き出した新たなファイルで置き換える
+     * @param file ジャーナルのファイル
+     * @param entries 有効なエントリ
+     * @throws IOException
+     */
+    private static void rewrite(File file, TreeMap<SimpleAnycast.LTKey, Boolean> entries) throws IOException {
+        File tmp = new File(file.getPath() + ".tmp");
+        Files.deleteIfExists(tmp.toPath());
+        RegistrationJournal j = new RegistrationJournal(tmp, entries);
+        j.buf.putInt(MAGIC);
+        for (Map.Entry<SimpleAnycast.LTKey, Boolean> e : entries.entrySet()) {
+            j.write(e.getValue() ? OP_DISCOVERABLE : OP_UNDISCOVERABLE, e.getKey());
+        }
+        j.close();
+        Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * 現在の有効なエントリのみを書き出したファイルに置き換え、開き直す
+     * @throws IOException
+     */
+    private void compact() throws IOException {
+        close();
+        try {
+            rewrite(file, live);
+            records = live.size();
+        } finally {
+            // 置き換えに失敗した場合は元のファイルを開き直す
+            map();
+            seekEnd();
+        }
+    }
+
+    /**
+     * ジャーナルを読み込む
+     * @param file
+     * @return キーと被探索状態
+     * @throws IOException
+     */
+    private static TreeMap<SimpleAnycast.LTKey, Boolean> read(File file) throws IOException {
+        TreeMap<SimpleAnycast.LTKey, Boolean> entries = new TreeMap<>();
+        byte[] data = Files.readAllBytes(file.toPath());
+        ByteBuffer b = ByteBuffer.wrap(data);
+        if (data.length < 4 || b.getInt() != MAGIC)
+            throw new IOException("not a registration journal: " + file);
+        try {
+            while (b.hasRemaining()) {
+                byte op = b.get();
+                if (op == OP_END)
+                    break;
+                byte[] group = new byte[b.getShort() & 0xffff];
+                b.get(group);
+                byte[] suffix = new byte[b.get() & 0xff];
+                b.get(suffix);
+                SimpleAnycast.LTKey key = new SimpleAnycast.LTKey(new String(group, StandardCharsets.UTF_8), new Id(suffix));
+                if (op == OP_REMOVE)
+                    entries.remove(key);
+                else
+                    entries.put(key, op == OP_DISCOVERABLE);
+            }
+        } catch (BufferUnderflowException e) {
+            // 書き込み途中のレコード
+        }
+        return entries;
+    }
+
+    /**
+     * 追記位置をジャーナルの終端に移す
+     */
+    private void seekEnd() {
+        buf.position(4);
+        while (buf.remaining() > 0) {
+            int pos = buf.position();
+            if (buf.get(pos) == OP_END)
+                break;
+            int glen = buf.getShort(pos + 1) & 0xffff;
+            int slen = buf.get(pos + 3 + glen) & 0xff;
+            buf.position(pos + 4 + glen + slen);
+        }
+    }
+
+    /**
+     * オープン時にジャーナルにあったエントリを取得する
+     * @return キーと被探索状態 (キー順)
+     */
+    TreeMap<SimpleAnycast.LTKey, Boolean> getPrevious() {
+        return previous;
+    }
+
+    /**
+     * キーの被探索状態を記録する
+     * @param key
+     * @param discoverable
+     * @throws IOException
+     */
+    synchronized void put(SimpleAnycast.LTKey key, boolean discoverable) throws IOException {
+        append(discoverable ? OP_DISCOVERABLE : OP_UNDISCOVERABLE, key);
+        live.put(key, discoverable);
+    }
+
+    /**
+     * キーの削除を記録する
+     * @param key
+     * @throws IOException
+     */
+    synchronized void remove(SimpleAnycast.LTKey key) throws IOException {
+        append(OP_REMOVE, key);
+        live.remove(key);
+    }
+
+    /**
+     * ファイル中のレコード数を取得する
+     * @return
+     */
+    synchronized int getRecords() {
+        return records;
+    }
+
+    /**
+     * 必要であれば置き換えを行ってからレコードを追記する
+     * @param op
+     * @param key
+     * @throws IOException
+     */
+    private void append(byte op, SimpleAnycast.LTKey key) throws IOException {
+        int dead = records - live.size();
+        if (dead > live.size()
+                && (dead >= COMPACT_MIN_RECORDS || buf.remaining() < 5 + recordLength(key)))
+            compact();
+        write(op, key);
+        records++;
+    }
+
+    private static int recordLength(SimpleAnycast.LTKey key) {
+        return key.getPrefix().getBytes(StandardCharsets.UTF_8).length + key.getSuffix()._getBytes().length;
+    }
+
+    /**
+     * レコードを書き込む
+     * @param op
+     * @param key
+     * @throws IOException
+     */
+    private void write(byte op, SimpleAnycast.LTKey key) throws IOException {
+        byte[] group = key.getPrefix().getBytes(StandardCharsets.UTF_8);
+        byte[] suffix = key.getSuffix()._getBytes();
+        if (group.length > 0xffff || suffix.length > 0xff)
+            throw new IOException("key too long for journal: " + key);
+        int len = 4 + group.length + suffix.length;
+        if (buf.remaining() < len + 1) {
+            // 終端の 0 を含めて書けるよう拡張する
+            int pos = buf.position();
+            long capacity = buf.capacity();
+            while (capacity - pos < len + 1)
+                capacity <<= 1;
+            buf.force();
+            buf = channel.map(FileChannel.MapMode.READ_WRITE, 0, capacity);
+            buf.position(pos);
+        }
+        int pos = buf.position();
+        buf.position(pos + 1);
+        buf.putShort((short) group.length);
+        buf.put(group);
+        buf.put((byte) suffix.length);
+        buf.put(suffix);
+        buf.put(pos, op);   // 本体を書いた後に op を書く
+    }
+
+    /**
+     * 書き込んだ内容をストレージに反映する
+     */
+    synchronized void force() {
+        buf.force();
+    }
+
+    /**
+     * ジャーナルを閉じる
+     * @throws IOException
+     */
+    synchronized void close() throws IOException {
+        buf.force();
+        channel.close();
+        raf.close();
+    }
+
+    @Override
+    public String toString() {
+        return "RegistrationJournal [file=" + file + "]";
+    }
+}
@@ -0,0 +1,181 @@
+package org.piax.samples.anycast;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ThreadLocalRandom;
+
+import org.piax.common.Endpoint;
+
+/**
+ * Group ID ごとに最近応答したピアとキーを保持するキャッシュ
+ *
+ * エントリは TTL を過ぎると破棄される。
+ * Group ID の数は maxGroups、グループあたりのエントリ数は maxPerGroup を上限とし、
+ * それぞれ最も古いものから破棄する。
+ */
+class ResponderCache {
+    /**
+     * キャッシュのエントリ
+     */
+    static class Entry {
+        final Endpoint endpoint;        // 直接要求の宛先
+        final SimpleAnycast.LTKey key;  // 応答したハンドルのキー
+        final String localityTag;       // 応答ピアの locality tag (null可)
+        final long expireAt;            // System.nanoTime 基準
+
+        Entry(Endpoint endpoint, SimpleAnycast.LTKey key, String localityTag, long expireAt) {
+            this.endpoint = endpoint;
+            this.key = key;
+            this.localityTag = localityTag;
+            this.expireAt = expireAt;
+        }
+
+        @Override
+        public String toString() {
+            return "Entry [endpoint=" + endpoint + ", key=" + key
+                    + (localityTag != null ? ", localityTag=" + localityTag : "") + "]";
+        }
+    }
+
+    private final int maxPerGroup;
+    private final long ttlNanos;
+    private final LinkedHashMap<String, List<Entry>> groups;
+
+    /**
+     * @param maxGroups 保持する Group ID の最大数
+     * @param maxPerGroup グループあたりの最大エントリ数
+     * @param ttlMillis エントリの有効期間 (ms)
+     */
+    ResponderCache(final int maxGroups, int maxPerGroup, long ttlMillis) {
+        if (maxGroups <= 0 || maxPerGroup <= 0 || ttlMillis <= 0)
+            throw new IllegalArgumentException("maxGroups, maxPerGroup and ttlMillis should be positive");
+        this.maxPerGroup = maxPerGroup;
+        this.ttlNanos = ttlMillis * 1000000L;
+        this.groups = new LinkedHashMap<String, List<Entry>>(16, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, List<ResponderCache.Entry>> eldest) {
+                return size() > maxGroups;
+            }
+        };
+    }
+
+    /**
+     * groupid の有効なエントリから 1 つをランダムに選ぶ
+     * @param groupid
+     * @return 有効なエントリがない場合は null
+     */
+    synchronized Entry pick(String groupid) {
+        List<Entry> entries = purge(groupid);
+        if (entries == null)
+            return null;
+        return entries.get(ThreadLocalRandom.current().nextInt(entries.size()));
+    }
+
+    /**
+     * groupid の有効なエントリの一覧を得る
+     * @param groupid
+     * @return 有効なエントリの複製 有効なエントリがない場合は null
+     */
+    synchronized List<Entry> valid(String groupid) {
+        List<Entry> entries = purge(groupid);
+        return (entries == null) ? null : new ArrayList<>(entries);
+    }
+
+    /**
+     * groupid の期限切れのエントリを破棄する
+     * @param groupid
+     * @return 有効なエントリ 有効なエントリがない場合は null
+     */
+    private List<Entry> purge(String groupid) {
+        List<Entry> entries = groups.get(groupid);
+        if (entries == null)
+            return null;
+        long now = System.nanoTime();
+        for (Iterator<Entry> it = entries.iterator(); it.hasNext();) {
+            if (it.next().expireAt - now < 0)
+                it.remove();
+        }
+        if (entries.isEmpty()) {
+            groups.remove(groupid);
+            return null;
+        }
+        return entries;
+    }
+
+    /**
+     * エントリを追加する 同じキーのエントリがある場合は有効期間を更新する
+     * @param groupid
+     * @param endpoint 直接要求の宛先
+     * @param key 応答したハンドルのキー
+     * @param localityTag 応答ピアの locality tag (null可)
+     */
+    synchronized void put(String groupid, Endpoint endpoint, SimpleAnycast.LTKey key, String localityTag) {
+        List<Entry> entries = groups.get(groupid);
+        if (entries == null) {
+            entries = new ArrayList<>();
+            groups.put(groupid, entries);
+        }
+        for (Iterator<Entry> it = entries.iterator(); it.hasNext();) {
+            if (it.next().key.equals(key))
+                it.remove();
+        }
+        if (entries.size() >= maxPerGroup)
+            entries.remove(0);
+        entries.add(new Entry(endpoint, key, localityTag, System.nanoTime() + ttlNanos));
+    }
+
+    /**
+     * キャッシュしている応答ピアの一覧を得る
+     * @return
+     */
+    synchronized Set<Endpoint> endpoints() {
+        Set<Endpoint> result = new HashSet<>();
+        for (List<Entry> entries : groups.values()) {
+            for (Entry e : entries) {
+                result.add(e.endpoint);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * エントリを破棄する
+     * @param groupid
+     * @param e
+     */
+    synchronized void evict(String groupid, Entry e) {
+        List<Entry> entries = groups.get(groupid);
+        if (entries == null)
+            return;
+        entries.remove(e);
+        if (entries.isEmpty())
+            groups.remove(groupid);
+    }
+
+    /**
+     * 応答ピアのすべてのエントリを破棄する
+     * @param endpoint 直接要求の宛先
+     */
+    synchronized void evict(Endpoint endpoint) {
+        for (Iterator<List<Entry>> git = groups.values().iterator(); git.hasNext();) {
+            List<Entry> entries = git.next();
+            for (Iterator<Entry> it = entries.iterator(); it.hasNext();) {
+                if (it.next().endpoint.equals(endpoint))
+                    it.remove();
+            }
+            if (entries.isEmpty())
+                git.remove();
+        }
+    }
+
+    synchronized void clear() {
+        groups.clear();
+    }
+}
@@ -0,0 +1,89 @@
+package org.piax.samples.anycast;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.piax.common.Endpoint;
+
+/**
+ * 応答ピアごとの RTT 推定値
+ *
+ * TCP の SRTT と同様に指数移動平均 (係数 1/8) で平滑化し、RTTVAR (係数 1/4) により
+ * 再送タイムアウトと同様のタイムアウト時間 (SRTT + 4 * RTTVAR) を得る。
+ * 保持するピア数は maxEntries を上限とし、最も長く更新されていないものから破棄する。
+ */
+class RttEstimator {
+    /**
+     * ピアごとの推定値
+     */
+    private static class Stat {
+        long srtt;
+        long rttvar;
+
+        Stat(long nanos) {
+            this.srtt = nanos;
+            this.rttvar = nanos / 2;
+        }
+    }
+
+    private final LinkedHashMap<Endpoint, Stat> stats;
+
+    RttEstimator(final int maxEntries) {
+        this.stats = new LinkedHashMap<Endpoint, Stat>(16, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Endpoint, Stat> eldest) {
+                return size() > maxEntries;
+            }
+        };
+    }
+
+    /**
+     * RTT の測定値を記録する
+     * @param peer 応答ピア
+     * @param nanos 測定値 (ナノ秒)
+     */
+    synchronized void record(Endpoint peer, long nanos) {
+        if (nanos < 0)
+            return;
+        Stat s = stats.get(peer);
+        if (s == null) {
+            stats.put(peer, new Stat(nanos));
+            return;
+        }
+        s.rttvar += (Math.abs(s.srtt - nanos) - s.rttvar) / 4;
+        s.srtt += (nanos - s.srtt) / 8;
+    }
+
+    /**
+     * 測定値がない場合に限り、初期値を記録する
+     * @param peer 応答ピア
+     * @param nanos 初期値 (ナノ秒)
+     */
+    synchronized void recordIfAbsent(Endpoint peer, long nanos) {
+        if (nanos < 0 || stats.containsKey(peer))
+            return;
+        stats.put(peer, new Stat(nanos));
+    }
+
+    /**
+     * RTT の推定値を得る
+     * @param peer 応答ピア
+     * @return 推定値 (ナノ秒) 測定値がない場合は -1
+     */
+    synchronized long estimate(Endpoint peer) {
+        Stat s = stats.get(peer);
+        return (s == null) ? -1 : s.srtt;
+    }
+
+    /**
+     * タイムアウト時間 (SRTT + 4 * RTTVAR) を得る
+     * @param peer 応答ピア
+     * @return タイムアウト時間 (ナノ秒) 測定値がない場合は -1
+     */
+    synchronized long timeout(Endpoint peer) {
+        Stat s = stats.get(peer);
+        return (s == null) ? -1 : s.srtt + 4 * s.rttvar;
+    }
+}
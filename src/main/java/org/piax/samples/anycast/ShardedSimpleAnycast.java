@@ -0,0 +1,334 @@
+package org.piax.samples.anycast;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import javax.management.JMException;
+
+import org.piax.common.ComparableKey;
+import org.piax.common.Destination;
+import org.piax.common.ServiceId;
+import org.piax.gtrans.ChannelTransport;
+import org.piax.gtrans.IdConflictException;
+import org.piax.gtrans.ProtocolUnsupportedException;
+import org.piax.gtrans.ov.sg.MSkipGraph;
+
+/**
+ * Group ID のハッシュにより複数の {@link SimpleAnycast} に振り分ける Anycast 実装
+ *
+ * 各 shard は独自の Service ID (base + "-" + shard 番号) を持ち、ハンドルの登録簿、
+ * 計測値、OverlayListener を shard ごとに持つため、異なる shard のグループは登録簿の lock や
+ * 計測値を共有しない。listener は shard ごとの executor ではなく、これまでどおり SkipGraph の
+ * 受信スレッドで呼び出されるため、1 つの SkipGraph 上で shard 数を増やしても listener の処理が
+ * 複数のコアに分散されるわけではない。shard ごとの遅延処理用のスレッドは、ソフトな無効化や probe などの
+ * 遅延処理が必要になった時点で生成される。
+ * shard ごとに異なる SkipGraph を用いることもできる。
+ * Group ID から shard への対応は shard 数のみで決まるため、
+ * 同じグループを扱うすべてのピアで shard 数と base の Service ID を揃えること。
+ *
+ * @param <T> Anycast 時の引数の型
+ * @param <R> Anycast 時の返り値の型
+ */
+public class ShardedSimpleAnycast<T extends Serializable, R extends Serializable> {
+    private final List<SimpleAnycast<T, R>> shards;
+
+    /**
+     * 1 つの SkipGraph 上に shards 個の shard を置くコンストラクタ
+     * Service ID はデフォルト値を base として用いる
+     * @param sg 基盤になる SkipGraph
+     * @param shards shard 数
+     */
+    public ShardedSimpleAnycast(MSkipGraph<Destination, ComparableKey<?>> sg, int shards) {
+        this(Collections.singletonList(sg), shards, SimpleAnycast.DEFAULT_SERVICE_ID);
+    }
+
+    /**
+     * shard ごとの SkipGraph を指定するコンストラクタ
+     * shard i は sgs.get(i % sgs.size()) を用いる
+     * @param sgs 基盤になる SkipGraph
+     * @param shards shard 数
+     * @param base Service ID の base
+     */
+    public ShardedSimpleAnycast(List<MSkipGraph<Destination, ComparableKey<?>>> sgs, int shards,
+            ServiceId base) {
+        if (sgs == null || sgs.isEmpty())
+            throw new IllegalArgumentException("sgs should not be null or empty");
+        if (shards <= 0)
+            throw new IllegalArgumentException("shards should be positive");
+        if (base == null)
+            throw new IllegalArgumentException("base should not be null");
+
+        List<SimpleAnycast<T, R>> list = new ArrayList<>(shards);
+        for (int i = 0; i < shards; i++) {
+            ServiceId sid = new ServiceId(base + "-" + i);
+            list.add(new SimpleAnycast<T, R>(sgs.get(i % sgs.size()), sid));
+        }
+        this.shards = Collections.unmodifiableList(list);
+    }
+
+    /**
+     * shard 数を取得する
+     * @return
+     */
+    public int getShardCount() {
+        return shards.size();
+    }
+
+    /**
+     * すべての shard を取得する
+     * @return
+     */
+    public List<SimpleAnycast<T, R>> getShards() {
+        return shards;
+    }
+
+    /**
+     * groupid を扱う shard を取得する
+     * @param groupid Group ID
+     * @return
+     */
+    public SimpleAnycast<T, R> shardOf(String groupid) {
+        if (groupid == null || groupid.isEmpty())
+            throw new IllegalArgumentException("groupid should not be null or empty");
+        int h = groupid.hashCode();
+        h ^= (h >>> 16);
+        return shards.get((h & 0x7fffffff) % shards.size());
+    }
+
+    /**
+     * groupid の Anycast グループに登録し Anycast を受け付ける
+     * @param groupid Anycast グループの ID (Group ID)
+     * @param listener Anycast を受けた場合の callback nullable
+     * @return
+     * @throws IOException
+     * @see SimpleAnycast#register(String, SimpleAnycastListener)
+     */
+    public SimpleAnycastHandle<T, R> register(String groupid, SimpleAnycastListener<T, R> listener) throws IOException {
+        return shardOf(groupid).register(groupid, listener);
+    }
+
+    /**
+     * SimpleAnycastHandle h に対応する Anycast グループから離脱する
+     * @param h
+     * @throws IOException
+     * @see SimpleAnycast#unregister(SimpleAnycastHandle)
+     */
+    public void unregister(SimpleAnycastHandle<T, R> h) throws IOException {
+        if (h == null)
+            throw new IllegalArgumentException("h should not be null");
+        shardOf(h.getGroupId()).unregister(h);
+    }
+
+    /**
+     * 指定された GroupID に Anycast する
+     * @see SimpleAnycast#anycast(String, Serializable)
+     */
+    public R anycast(String groupid, T obj) throws ProtocolUnsupportedException, IOException {
+        return shardOf(groupid).anycast(groupid, obj);
+    }
+
+    /**
+     * 指定された GroupID のうち、属性が filter の条件を満たすハンドルに Anycast する
+     * @see SimpleAnycast#anycast(String, Serializable, AnycastFilter)
+     */
+    public R anycast(String groupid, T obj, AnycastFilter filter) throws ProtocolUnsupportedException, IOException {
+        return shardOf(groupid).anycast(groupid, obj, filter);
+    }
+
+    /**
+     * 指定された GroupID に属するすべてのハンドルに要求を送り、結果を集約する
+     * @see SimpleAnycast#groupcast(String, Serializable, AnycastAggregator)
+     */
+    public <A extends Serializable> GroupcastResult<A> groupcast(String groupid, T obj,
+            AnycastAggregator<R, A> aggregator) throws ProtocolUnsupportedException, IOException {
+        return shardOf(groupid).groupcast(groupid, obj, aggregator);
+    }
+
+    /**
+     * 指定された GroupID のうち、属性が filter の条件を満たすすべてのハンドルに要求を送り、結果を集約する
+     * @see SimpleAnycast#groupcast(String, Serializable, AnycastFilter, AnycastAggregator)
+     */
+    public <A extends Serializable> GroupcastResult<A> groupcast(String groupid, T obj, AnycastFilter filter,
+            AnycastAggregator<R, A> aggregator) throws ProtocolUnsupportedException, IOException {
+        return shardOf(groupid).groupcast(groupid, obj, filter, aggregator);
+    }
+
+    /**
+     * グループのサイズの推定値を取得する
+     * @see SimpleAnycast#estimateGroupSize(String)
+     */
+    public GroupSizeEstimate estimateGroupSize(String groupid) {
+        return shardOf(groupid).estimateGroupSize(groupid);
+    }
+
+    /**
+     * グループのサイズを推定するための標本を得る
+     * @see SimpleAnycast#sampleGroupSize(String, int)
+     */
+    public GroupSizeEstimate sampleGroupSize(String groupid, int samples) throws ProtocolUnsupportedException, IOException {
+        return shardOf(groupid).sampleGroupSize(groupid, samples);
+    }
+
+    /**
+     * すべての shard の listener の呼び出し方を設定する
+     * @param mode
+     */
+    public void setDispatchMode(SimpleAnycast.DispatchMode mode) {
+        for (SimpleAnycast<T, R> s : shards) {
+            s.setDispatchMode(mode);
+        }
+    }
+
+    /**
+     * すべての shard のトレース結果の通知先を設定する
+     * @param tracer 通知先 null の場合はトレースを無効にする
+     */
+    public void setTracer(AnycastTracer tracer) {
+        for (SimpleAnycast<T, R> s : shards) {
+            s.setTracer(tracer);
+        }
+    }
+
+    /**
+     * すべての shard で応答ピアへの直接要求を有効にする
+     * @param trans 直接要求に用いるトランスポート (PeerId を Endpoint とするもの)
+     * @throws IdConflictException
+     * @throws IOException
+     * @see SimpleAnycast#enableDirectRequest(ChannelTransport)
+     */
+    public void enableDirectRequest(ChannelTransport<?> trans) throws IdConflictException, IOException {
+        for (SimpleAnycast<T, R> s : shards) {
+            s.enableDirectRequest(trans);
+        }
+    }
+
+    /**
+     * すべての shard で応答ピアのキャッシュを有効にする
+     * 各 shard が maxGroups / shard 数 (切り上げ) の Group ID をキャッシュする
+     * @see SimpleAnycast#enableResponderCache(int, int, long)
+     */
+    public void enableResponderCache(int maxGroups, int maxPerGroup, long ttlMillis) {
+        int perShard = (maxGroups + shards.size() - 1) / shards.size();
+        for (SimpleAnycast<T, R> s : shards) {
+            s.enableResponderCache(perShard, maxPerGroup, ttlMillis);
+        }
+    }
+
+    /**
+     * すべての shard で応答ピアのキャッシュを無効にする
+     */
+    public void disableResponderCache() {
+        for (SimpleAnycast<T, R> s : shards) {
+            s.disableResponderCache();
+        }
+    }
+
+    /**
+     * すべての shard の locality tag を設定する
+     * @param tag ラックやデータセンターなどを表す任意の文字列 null の場合は付加しない
+     * @see SimpleAnycast#setLocalityTag(String)
+     */
+    public void setLocalityTag(String tag) {
+        for (SimpleAnycast<T, R> s : shards) {
+            s.setLocalityTag(tag);
+        }
+    }
+
+    /**
+     * すべての shard で locality を考慮した応答ピアの選択を有効にする
+     * probe は shard ごとに、その shard がキャッシュした応答ピアへ送られる
+     * @see SimpleAnycast#enableLocalityAwareness(double, long)
+     */
+    public void enableLocalityAwareness(double slack, long probeIntervalMillis) {
+        for (SimpleAnycast<T, R> s : shards) {
+            s.enableLocalityAwareness(slack, probeIntervalMillis);
+        }
+    }
+
+    /**
+     * すべての shard で locality を考慮した応答ピアの選択を無効にする
+     */
+    public void disableLocalityAwareness() {
+        for (SimpleAnycast<T, R> s : shards) {
+            s.disableLocalityAwareness();
+        }
+    }
+
+    /**
+     * すべての shard で登録のジャーナルを有効にする
+     * shard i のジャーナルは file のパスに "." + i を付加したファイルとなる。
+     * 再起動後も同じ shard 数で呼び出すこと。
+     * @param file ジャーナルのファイル
+     * @throws IOException
+     * @see SimpleAnycast#enableJournal(File)
+     */
+    public void enableJournal(File file) throws IOException {
+        if (file == null)
+            throw new IllegalArgumentException("file should not be null");
+        for (int i = 0; i < shards.size(); i++) {
+            shards.get(i).enableJournal(new File(file.getPath() + "." + i));
+        }
+    }
+
+    /**
+     * すべての shard で、ジャーナルにあった以前の登録のうち、まだ復元していないものの数を取得する
+     * @return
+     */
+    public int getPreviousRegistrations() {
+        int n = 0;
+        for (SimpleAnycast<T, R> s : shards) {
+            n += s.getPreviousRegistrations();
+        }
+        return n;
+    }
+
+    /**
+     * すべての shard で、ジャーナルにあった以前の登録を復元する
+     * @param restorer 復元するハンドルの listener を与える callback
+     * @return 復元したハンドル (shard ごとにキー順)
+     * @throws IOException
+     * @see SimpleAnycast#restore(HandleRestorer)
+     */
+    public List<SimpleAnycastHandle<T, R>> restore(HandleRestorer<T, R> restorer) throws IOException {
+        List<SimpleAnycastHandle<T, R>> result = new ArrayList<>();
+        for (SimpleAnycast<T, R> s : shards) {
+            result.addAll(s.restore(restorer));
+        }
+        return result;
+    }
+
+    /**
+     * すべての shard で、ジャーナルにあった以前の登録のうち、まだ復元していないものを破棄する
+     * @throws IOException
+     */
+    public void discardPreviousRegistrations() throws IOException {
+        for (SimpleAnycast<T, R> s : shards) {
+            s.discardPreviousRegistrations();
+        }
+    }
+
+    /**
+     * すべての shard の計測値を MBean として登録する
+     * shard i は name + "/" + i の名前で登録される
+     * @param name 名前
+     * @throws JMException
+     */
+    public void registerMBeans(String name) throws JMException {
+        for (int i = 0; i < shards.size(); i++) {
+            shards.get(i).getMetrics().registerMBean(name + "/" + i);
+        }
+    }
+
+    /**
+     * すべての shard の使用を終了する
+     */
+    public void fin() {
+        for (SimpleAnycast<T, R> s : shards) {
+            s.fin();
+        }
+    }
+}
@@ -1,20 +1,40 @@
 package org.piax.samples.anycast;
 
+import java.io.File;
 import java.io.IOException;
 import java.io.Serializable;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
 
 import org.piax.common.ComparableKey;
 import org.piax.common.Destination;
+import org.piax.common.Endpoint;
 import org.piax.common.Id;
 import org.piax.common.ServiceId;
+import org.piax.common.TransportId;
 import org.piax.common.subspace.KeyRange;
 import org.piax.common.subspace.LowerUpper;
+import org.piax.gtrans.ChannelTransport;
 import org.piax.gtrans.FutureQueue;
+import org.piax.gtrans.IdConflictException;
 import org.piax.gtrans.NetworkTimeoutException;
 import org.piax.gtrans.ProtocolUnsupportedException;
+import org.piax.gtrans.RPCInvoker;
 import org.piax.gtrans.ReceivedMessage;
 import org.piax.gtrans.RemoteValue;
 import org.piax.gtrans.Transport;
@@ -32,13 +52,24 @@ import org.slf4j.LoggerFactory;
  * Group ID で識別される Anycast グループを単位として擬似 anycast を実現する。
  * 被 Anycast 側は register によりハンドルを取得し、 unregister によりハンドルを解放する。
  * ハンドルを介して被探索状態の有無効を切り換えることができる。
+ * 有無効の切り換えはローカルな状態の変更のみで行うこともでき、
+ * 無効なハンドルへの要求は応答ピアから隣接するキーへ転送される。
  * Anycast 側は search により指定された Group ID に属するノードに Anycast を行う。
+ * {@link AnycastFilter} を与えると、ハンドルの属性が条件を満たすノードにのみ Anycast を行う。
+ * groupcast により、グループに属するすべてのノードに要求を送り、結果を集約することもできる。
+ * グループのサイズは Anycast の探索キーと応答したキーの間隔から推定される ({@link #estimateGroupSize(String)})。
+ * 登録のジャーナルを有効にすると、再起動後に以前と同じキーでハンドルを復元できる
+ * ({@link #enableJournal(File)})。
  * 
  * 【実装】
  * 被 Anycast 側は Group ID に、ランダムに生成した suffix を付加したキーを SkipGraph に登録し、
  * 被探索状態となる。
  * Anycast 側は指定された Group ID にランダムに生成した suffix を付加したキーを探索キーとして
  * SkipGraph 上を LessThan 探索を行うことで Anycast を実現している。
+ * Groupcast は Group ID のキー区間全体を範囲探索し、応答ピアごとに集約した結果を呼び出し側で集約する。
+ * 応答ピアは要求に付加された識別子により、ピアにマッチした複数のキーへの要求を 1 回だけ処理する。
+ * 同一ピア上に同じグループのハンドルが複数ある場合の listener の呼び出し方は
+ * {@link #setDispatchMode(DispatchMode)} により選択できる。
  * 
  * @param <T> Anycast 時の引数の型
  * @param <R> Anycast 時の返り値の型
@@ -58,11 +89,159 @@ public class SimpleAnycast<T extends Serializable, R extends Serializable> {
      */
     protected final ConcurrentHashMap<LTKey, SimpleAnycastHandle<T, R>> am = new ConcurrentHashMap<>();
 
+    /**
+     * Group ID ごとにキー順でハンドルを保持する索引
+     */
+    final LocalHandleIndex<T, R> localIndex = new LocalHandleIndex<>();
+
+    /**
+     * 要求を受けたピアでの listener の呼び出し方
+     */
+    public enum DispatchMode {
+        /** マッチしたすべてのハンドルの listener を呼び出す (最後の結果を返す) */
+        ALL,
+        /** ピア内の同じグループのハンドルから、実行中の要求が少ないものを 1 つ選んで呼び出す */
+        LEAST_OUTSTANDING,
+        /** ピア内の同じグループのハンドルから、順番に 1 つ選んで呼び出す */
+        ROUND_ROBIN,
+    }
+
+    private volatile DispatchMode dispatchMode = DispatchMode.ALL;
+
+    /**
+     * 計測値
+     */
+    final AnycastMetrics metrics = new AnycastMetrics();
+
+    /**
+     * トレース結果の通知先 null 時はトレースしない
+     */
+    private volatile AnycastTracer tracer = null;
+
     /**
      * FutureQueue タイムアウト時間
      */
     public static int FUTUREQUEUE_GETNEXT_TIMEOUT = 10 * 1000;
 
+    /**
+     * {@link SimpleAnycastHandle#disable()} 後に SkipGraph からキーを削除するまでの時間 (ms)
+     * 負値の場合はキーを削除しない
+     */
+    public static int SOFT_DISABLE_IDLE_TIMEOUT = 30 * 1000;
+
+    /**
+     * 無効なハンドルに届いた要求を隣接キーへ転送する最大回数
+     */
+    public static int MAX_FORWARD_HOPS = 8;
+
+    /**
+     * {@link AnycastFilter} の条件を満たさないハンドルに届いた要求を隣接キーへ転送する最大回数
+     */
+    public static int MAX_FILTER_FORWARD_HOPS = 64;
+
+    /**
+     * groupcast の要求のタイムアウト時間 (ms)
+     */
+    public static int GROUPCAST_TIMEOUT = 30 * 1000;
+
+    /**
+     * 応答ピアで処理済みの groupcast の要求として記憶する数
+     * 要求は 1 つのピアにマッチしたキーごとに届くため、2 回目以降の要求には応答しない
+     */
+    public static int GROUPCAST_SEEN_MAX = 1024;
+
+    /**
+     * 処理済みの groupcast の要求の識別子 (LRU)
+     */
+    private final LinkedHashMap<Long, Boolean> groupcastSeen = new LinkedHashMap<Long, Boolean>(16, 0.75f, true) {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Long, Boolean> eldest) {
+            return size() > GROUPCAST_SEEN_MAX;
+        }
+    };
+
+    /**
+     * グループのサイズの推定に用いる、グループあたりの直近の標本数
+     * (インスタンスの生成時に確定するため定数とする)
+     */
+    public static final int GROUP_SIZE_WINDOW = 64;
+
+    /**
+     * グループのサイズの推定値を保持する Group ID の最大数
+     */
+    public static final int GROUP_SIZE_MAX_GROUPS = 1000;
+
+    /**
+     * グループのサイズの推定
+     */
+    final GroupSizeEstimator sizeEstimator = new GroupSizeEstimator(GROUP_SIZE_MAX_GROUPS, GROUP_SIZE_WINDOW);
+
+    /**
+     * 遅延処理用 (初回使用時に生成)
+     */
+    private ScheduledExecutorService scheduler = null;
+
+    /**
+     * 応答ピアへの直接要求のタイムアウト時間の上限 (ms)
+     * 実際のタイムアウト時間は応答ピアごとの応答時間の推定値 (SRTT + 4 * RTTVAR) とし、
+     * 推定値がない場合にこの値を用いる。
+     * キャッシュした応答ピアが応答しない場合、タイムアウト後に SkipGraph 上の探索を行う
+     */
+    public static int DIRECT_REQUEST_TIMEOUT = 500;
+
+    /**
+     * 応答ピアへの直接要求のタイムアウト時間の下限 (ms)
+     */
+    public static int DIRECT_REQUEST_MIN_TIMEOUT = 20;
+
+    /**
+     * 直接要求の応答ピアごとの応答時間 (応答ピアでの処理時間を含む)
+     * 直接要求のタイムアウト時間の決定に用いる
+     */
+    final RttEstimator responseTime = new RttEstimator(LocalitySelector.MAX_PEERS);
+
+    /**
+     * 直接要求用の RPC (null 時は直接要求を使用しない)
+     */
+    private volatile RPCInvoker<DirectAnycastIf, Endpoint> invoker = null;
+
+    /**
+     * 応答ピアのキャッシュ (null 時はキャッシュしない)
+     */
+    private volatile ResponderCache responderCache = null;
+
+    /**
+     * 応答ピアの選択で、キャッシュを使わずに SkipGraph 上の探索を行う割合 (%)
+     * locality を考慮した選択が有効な場合のみ用いる。新たな応答ピアを見つけるためのもの
+     */
+    public static int LOCALITY_EXPLORE_PERCENT = 5;
+
+    /**
+     * 自ピアの locality tag (ラックなど) null 時は付加しない
+     */
+    private volatile String localityTag = null;
+
+    /**
+     * locality を考慮した応答ピアの選択 (null 時はランダムに選ぶ)
+     */
+    private volatile LocalitySelector locality = null;
+
+    /**
+     * 定期的な RTT 測定 (null 時は測定しない)
+     */
+    private ScheduledFuture<?> probeTask = null;
+
+    /**
+     * 登録のジャーナル (null 時は記録しない)
+     */
+    private volatile RegistrationJournal journal = null;
+
+    /**
+     * ジャーナルにあった以前の登録のうち、まだ復元していないもの (am で同期する)
+     */
+    private final TreeMap<LTKey, Boolean> previousKeys = new TreeMap<>();
 
     /**
      *  request に用いるクエリクラス
@@ -72,10 +251,19 @@ public class SimpleAnycast<T extends Serializable, R extends Serializable> {
 
         enum QPMethod {
             DISCOVER,
+            GROUPCAST,
+            SAMPLE,     // listener を呼び出さず、応答するキーのみを返す
         }
         final QPMethod method;
         final SimpleAnycast.LTKey targetKey;
         final T value;
+        final TraceContext trace;       // nullable
+        final AnycastFilter filter;     // 応答するハンドルの条件 (null可)
+        final AnycastAggregator<?, ?> aggregator;   // GROUPCAST 時の集約関数
+        final boolean reportResponder;  // 応答に ResponderReport を付加するなら true
+        final boolean wrapped;          // wraparound 探索中なら true
+        final int hops;                 // 隣接キーへの転送回数
+        final long queryId;             // GROUPCAST 時の要求の識別子 (応答ピアでの重複排除用)
 
         /**
          * 
@@ -84,6 +272,40 @@ public class SimpleAnycast<T extends Serializable, R extends Serializable> {
          * @param value SimpleAnycastListener#onReceive に渡す任意のオブジェクト
          */
         QueryPack(QPMethod method, SimpleAnycast.LTKey id, T value) {
+            this(method, id, value, null, null, null, false, false, 0, 0L);
+        }
+
+        /**
+         * 
+         * @param method
+         * @param id 探索対象キー
+         * @param value SimpleAnycastListener#onReceive に渡す任意のオブジェクト
+         * @param trace トレース情報 (null可)
+         * @param filter 応答するハンドルの条件 (null可)
+         * @param reportResponder 応答に ResponderReport を付加させる場合 true
+         */
+        QueryPack(QPMethod method, SimpleAnycast.LTKey id, T value, TraceContext trace, AnycastFilter filter,
+                boolean reportResponder) {
+            this(method, id, value, trace, filter, null, reportResponder, false, 0, 0L);
+        }
+
+        /**
+         * GROUPCAST 用
+         * @param id 探索対象キー (Group ID の -infinity key)
+         * @param value SimpleAnycastListener#onReceive に渡す任意のオブジェクト
+         * @param filter 応答するハンドルの条件 (null可)
+         * @param aggregator 集約関数
+         */
+        QueryPack(SimpleAnycast.LTKey id, T value, AnycastFilter filter, AnycastAggregator<?, ?> aggregator) {
+            this(QPMethod.GROUPCAST, id, value, null, filter, aggregator, false, false, 0,
+                    ThreadLocalRandom.current().nextLong());
+            if (aggregator == null)
+                throw new IllegalArgumentException("aggregator should not be null");
+        }
+
+        private QueryPack(QPMethod method, SimpleAnycast.LTKey id, T value, TraceContext trace,
+                AnycastFilter filter, AnycastAggregator<?, ?> aggregator, boolean reportResponder,
+                boolean wrapped, int hops, long queryId) {
             if (method == null)
                 throw new IllegalArgumentException("method should not be null");
             if (id == null)
@@ -92,12 +314,240 @@ public class SimpleAnycast<T extends Serializable, R extends Serializable> {
             this.method = method;
             this.targetKey = id;
             this.value = value;
+            this.trace = trace;
+            this.filter = filter;
+            this.aggregator = aggregator;
+            this.reportResponder = reportResponder;
+            this.wrapped = wrapped;
+            this.hops = hops;
+            this.queryId = queryId;
+        }
+
+        /**
+         * wraparound 探索用のクエリを得る
+         * トレース情報がある場合は送信時刻と wraparound フラグを更新する
+         * @return
+         */
+        QueryPack<T> forWraparound() {
+            TraceContext tc = (trace == null) ? null
+                    : new TraceContext(trace.traceId, System.currentTimeMillis(), true);
+            return new QueryPack<>(method, targetKey, value, tc, filter, aggregator, reportResponder, true, 0, queryId);
+        }
+
+        /**
+         * 隣接キーへ転送するクエリを得る
+         * @return
+         */
+        QueryPack<T> forwarded() {
+            return new QueryPack<>(method, targetKey, value, trace, filter, aggregator, reportResponder, wrapped, hops + 1, queryId);
+        }
+
+        /**
+         * 探索対象キーを置き換えたクエリを得る (直接要求用)
+         * @param key キャッシュした応答ハンドルのキー
+         * @return
+         */
+        QueryPack<T> withTarget(SimpleAnycast.LTKey key) {
+            return new QueryPack<>(method, key, value, trace, filter, aggregator, reportResponder, false, 0, queryId);
+        }
+
+        /**
+         * 隣接キーへ転送できる最大回数
+         * @return
+         */
+        int maxHops() {
+            return (filter != null) ? MAX_FILTER_FORWARD_HOPS : MAX_FORWARD_HOPS;
+        }
+
+        /**
+         * 探索区間の下端 (この値を含まない)
+         * @return
+         */
+        LTKey lowerBound() {
+            return wrapped ? targetKey : targetKey.getMinusInfinity();
         }
 
         @Override
         public String toString() {
             return "QueryPack [method=" + method + ", targetId=" + targetKey
-                    + ", value=" + value + "]";
+                    + ", value=" + value + (trace != null ? ", trace=" + trace : "")
+                    + (filter != null ? ", filter=" + filter : "")
+                    + (aggregator != null ? ", aggregator=" + aggregator : "")
+                    + (wrapped ? ", wrapped" : "") + (hops > 0 ? ", hops=" + hops : "") + "]";
+        }
+    }
+
+    /**
+     * クエリに付加するトレース情報
+     */
+    static class TraceContext implements Serializable {
+        private static final long serialVersionUID = 1L;
+
+        final long traceId;
+        final long sendTimeMillis;  // 送信時刻 (System.currentTimeMillis)
+        final boolean wraparound;   // wraparound 探索中なら true
+
+        TraceContext(long traceId, long sendTimeMillis, boolean wraparound) {
+            this.traceId = traceId;
+            this.sendTimeMillis = sendTimeMillis;
+            this.wraparound = wraparound;
+        }
+
+        @Override
+        public String toString() {
+            return "TraceContext [traceId=" + Long.toHexString(traceId) + ", sendTimeMillis="
+                    + sendTimeMillis + ", wraparound=" + wraparound + "]";
+        }
+    }
+
+    /**
+     * 応答ピアでのタイミング情報
+     * トレース情報付きのクエリに対し、{@link ResponderReport} に含めて返される
+     */
+    static class ResponderTiming implements Serializable {
+        private static final long serialVersionUID = 1L;
+
+        final long receiveDelayMillis;  // クエリ送信から受信までの時間
+        final long handlingNanos;       // クエリ処理時間
+        final long listenerNanos;       // listener の実行時間
+
+        ResponderTiming(long receiveDelayMillis, long handlingNanos, long listenerNanos) {
+            this.receiveDelayMillis = receiveDelayMillis;
+            this.handlingNanos = handlingNanos;
+            this.listenerNanos = listenerNanos;
+        }
+
+        @Override
+        public String toString() {
+            return "ResponderTiming [receiveDelayMillis=" + receiveDelayMillis
+                    + ", handlingNanos=" + handlingNanos + ", listenerNanos=" + listenerNanos + "]";
+        }
+    }
+
+    /**
+     * 応答ピアからの報告
+     * トレース情報付き、または reportResponder が指定されたクエリに対し、{@link DiscoverReply} に含めて返される
+     */
+    static class ResponderReport implements Serializable {
+        private static final long serialVersionUID = 1L;
+
+        final LTKey servedKey;          // listener を呼び出したハンドルのキー
+        final LTKey matchedKey;         // 探索でマッチしたキー (dispatch mode により servedKey と異なる)
+        final Endpoint directEndpoint;  // 直接要求の宛先 (null 時は直接要求を受け付けない)
+        final String localityTag;       // 応答ピアの locality tag (null可)
+        final long handlingNanos;       // クエリ処理時間 (RTT の推定に用いる)
+        final ResponderTiming timing;   // nullable
+
+        ResponderReport(LTKey servedKey, LTKey matchedKey, Endpoint directEndpoint, String localityTag,
+                long handlingNanos, ResponderTiming timing) {
+            this.servedKey = servedKey;
+            this.matchedKey = matchedKey;
+            this.directEndpoint = directEndpoint;
+            this.localityTag = localityTag;
+            this.handlingNanos = handlingNanos;
+            this.timing = timing;
+        }
+
+        @Override
+        public String toString() {
+            return "ResponderReport [servedKey=" + servedKey + ", matchedKey=" + matchedKey
+                    + ", directEndpoint=" + directEndpoint
+                    + (localityTag != null ? ", localityTag=" + localityTag : "")
+                    + ", handlingNanos=" + handlingNanos + ", timing=" + timing + "]";
+        }
+    }
+
+    /**
+     * 応答ピアからの報告付きの応答
+     * MSkipGraph は応答の RemoteValue を値のみで作り直し option を保持しないため、
+     * listener の返り値と報告を 1 つの値として返す
+     */
+    static class DiscoverReply implements Serializable {
+        private static final long serialVersionUID = 1L;
+
+        final Serializable value;       // listener の返り値 (null可)
+        final ResponderReport report;
+
+        DiscoverReply(Serializable value, ResponderReport report) {
+            if (report == null)
+                throw new IllegalArgumentException("report should not be null");
+            this.value = value;
+            this.report = report;
+        }
+
+        /**
+         * 応答の値から listener の返り値を取り出す
+         * @param value RemoteValue の値
+         * @return
+         */
+        static Object valueOf(Object value) {
+            return (value instanceof DiscoverReply) ? ((DiscoverReply) value).value : value;
+        }
+
+        /**
+         * 応答の値から応答ピアからの報告を取り出す
+         * @param value RemoteValue の値
+         * @return 報告 付加されていない場合は null
+         */
+        static ResponderReport reportOf(Object value) {
+            return (value instanceof DiscoverReply) ? ((DiscoverReply) value).report : null;
+        }
+
+        @Override
+        public String toString() {
+            return "DiscoverReply [value=" + value + ", report=" + report + "]";
+        }
+    }
+
+    /**
+     * groupcast に対する応答ピアごとの集約結果
+     */
+    static class GroupcastReply implements Serializable {
+        private static final long serialVersionUID = 1L;
+
+        final Serializable partial;     // ピア内のハンドルの集約結果
+        final int members;              // listener を呼び出したハンドル数
+
+        GroupcastReply(Serializable partial, int members) {
+            this.partial = partial;
+            this.members = members;
+        }
+
+        @Override
+        public String toString() {
+            return "GroupcastReply [partial=" + partial + ", members=" + members + "]";
+        }
+    }
+
+    /**
+     * 1 回の anycast 呼び出しの状態
+     */
+    private static class CallContext {
+        final String groupid;
+        final AnycastFilter filter;     // 応答するハンドルの条件 (null可)
+        final boolean measure;          // 計測を行う場合 true
+        final AnycastTrace trace;       // トレース結果の格納先 (null可)
+        final long start;               // 開始時刻 (trace が null でない場合のみ有効)
+        Endpoint responder = null;      // 最初の応答ピア
+        ResponderReport report = null;  // 最初の応答の報告
+
+        CallContext(String groupid, AnycastFilter filter, boolean measure, AnycastTrace trace) {
+            this.groupid = groupid;
+            this.filter = filter;
+            this.measure = measure;
+            this.trace = trace;
+            this.start = (trace != null) ? System.nanoTime() : 0L;
+        }
+
+        /**
+         * 応答を記録する 最初の応答のみを保持する
+         * @param rv
+         */
+        void record(RemoteValue<?> rv) {
+            if (responder != null)
+                return;
+            responder = rv.getPeer();
+            report = DiscoverReply.reportOf(rv.getValue());
         }
     }
 
@@ -294,6 +744,9 @@ public class SimpleAnycast<T extends Serializable, R extends Serializable> {
 
     /**
      * groupid の Anycast グループに登録し Anycast を受け付ける
+     * ジャーナルに同じ Group ID の以前の登録がある場合はそのキーを再利用する。
+     * 被探索状態であったキーを優先し、被探索状態でなかったキーしかない場合は
+     * 記録された状態のとおり無効な状態 ({@link SimpleAnycastHandle#disable()}) のハンドルを返す。
      * @param groupid Anycast グループの ID (Group ID)
      * @param listener Anycast を受けた場合の callback nullable
      * @return
@@ -304,20 +757,139 @@ public class SimpleAnycast<T extends Serializable, R extends Serializable> {
             throw new IllegalArgumentException("groupid should not be null or empty");
 
         synchronized (am) {
+            // 以前の登録のキーがあれば再利用する
+            LTKey reused = null;
+            for (Map.Entry<LTKey, Boolean> e : previousKeys.tailMap(LTKey.getMinusInfinity(groupid)).entrySet()) {
+                if (!e.getKey().getPrefix().equals(groupid))
+                    break;
+                if (reused == null)
+                    reused = e.getKey();
+                if (e.getValue()) {
+                    reused = e.getKey();
+                    break;
+                }
+            }
+            if (reused != null) {
+                boolean discoverable = previousKeys.remove(reused);
+                return register0(reused, listener, discoverable);
+            }
+
             LTKey handlekey = newRandomKey(groupid);
 
             // 重複のないキーを選ぶ
             while (am.containsKey(handlekey)) {
                 handlekey = newRandomKey(groupid);
             }
+            return register0(handlekey, listener, true);
+        }
+    }
 
-            SimpleAnycastHandle<T, R> result = new SimpleAnycastHandle<T, R>(this, handlekey, listener);
+    /**
+     * 指定したキーでハンドルを登録する am で同期して呼び出すこと
+     * @param handlekey 重複のないキー
+     * @param listener Anycast を受けた場合の callback nullable
+     * @param discoverable 被探索可能とする場合 true false の場合は無効な状態で登録する
+     * @return
+     * @throws IOException
+     */
+    private SimpleAnycastHandle<T, R> register0(LTKey handlekey, SimpleAnycastListener<T, R> listener,
+            boolean discoverable) throws IOException {
+        SimpleAnycastHandle<T, R> result = new SimpleAnycastHandle<T, R>(this, handlekey, listener);
+        if (discoverable)
             result.setDiscoverable();   // may fail
-            am.put(handlekey, result);
-            return result;
+        else
+            result.markDisabled();
+        am.put(handlekey, result);
+        localIndex.add(result);
+        metrics.addHandle(result);
+        return result;
+    }
+
+    /**
+     * 登録のジャーナルを有効にする
+     * 以後のハンドルの登録、被探索状態の変更、登録解除がファイルに記録される。
+     * ファイルに以前の登録がある場合、それらのキーは {@link #restore(HandleRestorer)} によりまとめて復元するか、
+     * 同じ Group ID の {@link #register(String, SimpleAnycastListener)} により再利用される。
+     * ハンドルを登録する前に呼び出すこと。
+     * @param file ジャーナルのファイル
+     * @throws IOException
+     */
+    public void enableJournal(File file) throws IOException {
+        synchronized (am) {
+            if (journal != null)
+                throw new IllegalStateException("journal is already enabled");
+            if (am.size() > 0)
+                throw new IllegalStateException("handles are already registered");
+            RegistrationJournal j = RegistrationJournal.open(file);
+            previousKeys.putAll(j.getPrevious());
+            journal = j;
+            logger.info("journal {} has {} previous registrations", file, previousKeys.size());
+        }
+    }
+
+    /**
+     * ジャーナルにあった以前の登録のうち、まだ復元していないものの数を取得する
+     * @return
+     */
+    public int getPreviousRegistrations() {
+        synchronized (am) {
+            return previousKeys.size();
+        }
+    }
+
+    /**
+     * ジャーナルにあった以前の登録を、同じキーと被探索状態でまとめて復元する
+     * 被探索状態でなかったハンドルは無効な状態 ({@link SimpleAnycastHandle#disable()}) で復元される。
+     * SkipGraph へのキーの追加はキーごとに順に行われ、一括の挿入とはならない。
+     * 復元に失敗したキーは以前の登録として残る。
+     * @param restorer 復元するハンドルの listener を与える callback
+     * @return 復元したハンドル (キー順)
+     * @throws IOException
+     */
+    public List<SimpleAnycastHandle<T, R>> restore(HandleRestorer<T, R> restorer) throws IOException {
+        if (restorer == null)
+            throw new IllegalArgumentException("restorer should not be null");
+
+        List<SimpleAnycastHandle<T, R>> result = new ArrayList<>();
+        synchronized (am) {
+            Iterator<Map.Entry<LTKey, Boolean>> it = previousKeys.entrySet().iterator();
+            while (it.hasNext()) {
+                Map.Entry<LTKey, Boolean> e = it.next();
+                LTKey handlekey = e.getKey();
+                result.add(register0(handlekey, restorer.listenerFor(handlekey.getPrefix()), e.getValue()));
+                it.remove();
+            }
+        }
+        return result;
+    }
+
+    /**
+     * ジャーナルにあった以前の登録のうち、まだ復元していないものを破棄する
+     * @throws IOException
+     */
+    public void discardPreviousRegistrations() throws IOException {
+        synchronized (am) {
+            RegistrationJournal j = journal;
+            for (LTKey handlekey : previousKeys.keySet()) {
+                if (j != null)
+                    j.remove(handlekey);
+            }
+            previousKeys.clear();
         }
     }
 
+    /**
+     * ジャーナルにキーの被探索状態を記録する
+     * @param handlekey
+     * @param discoverable
+     * @throws IOException
+     */
+    void journal(LTKey handlekey, boolean discoverable) throws IOException {
+        RegistrationJournal j = journal;
+        if (j != null)
+            j.put(handlekey, discoverable);
+    }
+
     /**
      * SimpleAnycastHandle h に対応する Anycast グループから離脱する
      * @param h
@@ -332,33 +904,562 @@ public class SimpleAnycast<T extends Serializable, R extends Serializable> {
                 h.setUndiscoverable();
                 h.dispose();
                 am.remove(h.getLTKey());
+                localIndex.remove(h);
+                metrics.removeHandle(h);
+                RegistrationJournal j = journal;
+                if (j != null)
+                    j.remove(h.getLTKey());
             }
         }
     }
 
     /**
-     * Group ID を prefix とし、ランダムな suffix を持つキーの生成
-     * @param groupid Group ID
+     * 遅延処理を登録する
+     * @param task 実行する処理
+     * @param delay 遅延時間 (ms)
      * @return
      */
-    private LTKey newRandomKey(String groupid) {
-        return new LTKey(groupid, Id.newId(suffixLength));
+    synchronized ScheduledFuture<?> schedule(Runnable task, long delay) {
+        return scheduler().schedule(task, delay, TimeUnit.MILLISECONDS);
     }
 
     /**
-     * 指定された GroupID に Anycast する
-     * @param groupid Anycast 対象の Group ID
-     * @param obj {@link SimpleAnycastListener#onReceive(String, Object)} に引数として渡される任意のオブジェクト
-     * @return {@link SimpleAnycastListener#onReceive(String, Object)} の返り値が返る null 時はノード未発見
-     * @throws ProtocolUnsupportedException
+     * 一定間隔で繰り返す遅延処理を登録する
+     * @param task 実行する処理
+     * @param interval 実行間隔 (ms)
+     * @return
+     */
+    synchronized ScheduledFuture<?> scheduleWithFixedDelay(Runnable task, long interval) {
+        return scheduler().scheduleWithFixedDelay(task, interval, interval, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * 遅延処理用の executor を得る (初回呼び出し時に生成する)
+     * @return
+     */
+    private ScheduledExecutorService scheduler() {
+        if (scheduler == null) {
+            scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "SimpleAnycast-" + serviceId);
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+        }
+        return scheduler;
+    }
+
+    /**
+     * 応答ピアへの直接要求を有効にする
+     * 要求を受ける側と要求する側の双方で呼び出す必要がある。
+     * @param trans 直接要求に用いるトランスポート (PeerId を Endpoint とするもの)
+     * @throws IdConflictException
+     * @throws IOException
+     */
+    @SuppressWarnings({ "unchecked", "rawtypes" })
+    public synchronized void enableDirectRequest(ChannelTransport<?> trans) throws IdConflictException, IOException {
+        if (trans == null)
+            throw new IllegalArgumentException("trans should not be null");
+        if (invoker != null)
+            throw new IllegalStateException("direct request is already enabled");
+
+        RPCInvoker<DirectAnycastIf, Endpoint> inv = new RPCInvoker<>(new TransportId(serviceId.toString()), (ChannelTransport) trans);
+        inv.registerRPCObject(serviceId, new DirectRequestReceiver());
+        invoker = inv;
+    }
+
+    /**
+     * 応答ピアのキャッシュを有効にする
+     * anycast の応答ピアとキーを Group ID ごとに保持し、以降の anycast ではキャッシュから
+     * ランダムに選んだ応答ピアに直接要求を送る。直接要求に失敗した場合はエントリを破棄し、
+     * SkipGraph 上の探索を行う。応答しない応答ピアのエントリはすべてのグループから破棄する。
+     * 直接要求のタイムアウト時間は応答ピアごとの応答時間から決まるため
+     * ({@link #DIRECT_REQUEST_MIN_TIMEOUT} 以上 {@link #DIRECT_REQUEST_TIMEOUT} 以下)、
+     * 停止した応答ピアによる追加の遅延は 1 回の anycast につきこの時間に限られる。
+     * {@link #enableDirectRequest(ChannelTransport)} の後に呼び出すこと。
+     * @param maxGroups キャッシュする Group ID の最大数
+     * @param maxPerGroup グループあたりにキャッシュする応答ピアの最大数
+     * @param ttlMillis エントリの有効期間 (ms)
+     */
+    public void enableResponderCache(int maxGroups, int maxPerGroup, long ttlMillis) {
+        if (invoker == null)
+            throw new IllegalStateException("direct request is not enabled");
+        responderCache = new ResponderCache(maxGroups, maxPerGroup, ttlMillis);
+    }
+
+    /**
+     * 応答ピアのキャッシュを無効にする
+     * locality を考慮した選択も無効になる
+     */
+    public synchronized void disableResponderCache() {
+        disableLocalityAwareness();
+        responderCache = null;
+    }
+
+    /**
+     * 自ピアの locality tag を設定する
+     * tag は応答に付加され、同じ tag を持つピアは locality を考慮した選択で優先される。
+     * @param tag ラックやデータセンターなどを表す任意の文字列 null の場合は付加しない
+     */
+    public void setLocalityTag(String tag) {
+        this.localityTag = tag;
+    }
+
+    /**
+     * 自ピアの locality tag を取得する
+     * @return
+     */
+    public String getLocalityTag() {
+        return localityTag;
+    }
+
+    /**
+     * locality を考慮した応答ピアの選択を有効にする
+     * キャッシュした応答ピアから RTT の小さいもの (locality tag が同じものを優先) を選ぶ。
+     * RTT は直接要求の応答時間から受動的に推定し、probeIntervalMillis が正の場合は
+     * キャッシュした応答ピアへ定期的に probe を送って測定する。
+     * 最良の候補との差が slack の範囲内にある候補からはランダムに選ぶため、負荷も分散される。
+     * {@link #enableResponderCache(int, int, long)} の後に呼び出すこと。
+     * @param slack 最良の候補の RTT からの許容幅 (0.5 の場合は 1.5 倍まで)
+     * @param probeIntervalMillis probe の間隔 (ms) 0 以下の場合は probe を送らない
+     */
+    public synchronized void enableLocalityAwareness(double slack, long probeIntervalMillis) {
+        if (responderCache == null)
+            throw new IllegalStateException("responder cache is not enabled");
+        disableLocalityAwareness();
+        locality = new LocalitySelector(slack);
+        if (probeIntervalMillis > 0) {
+            probeTask = scheduleWithFixedDelay(new Runnable() {
+                @Override
+                public void run() {
+                    probeResponders();
+                }
+            }, probeIntervalMillis);
+        }
+    }
+
+    /**
+     * locality を考慮した応答ピアの選択を無効にする
+     */
+    public synchronized void disableLocalityAwareness() {
+        locality = null;
+        if (probeTask != null) {
+            probeTask.cancel(false);
+            probeTask = null;
+        }
+    }
+
+    /**
+     * キャッシュした応答ピアへ probe を送り、RTT を測定する
+     * 応答しない応答ピアは測定値を更新しない (キャッシュからは直接要求の失敗時に破棄される)
+     */
+    public void probeResponders() {
+        LocalitySelector sel = this.locality;
+        ResponderCache cache = this.responderCache;
+        RPCInvoker<DirectAnycastIf, Endpoint> inv = this.invoker;
+        if (sel == null || cache == null || inv == null)
+            return;
+        for (Endpoint peer : cache.endpoints()) {
+            try {
+                DirectAnycastIf stub = inv.getStub(DirectAnycastIf.class, serviceId, peer, directTimeout(peer));
+                long start = System.nanoTime();
+                stub.ping();
+                sel.rtt.record(peer, System.nanoTime() - start);
+            } catch (Exception e) {
+                logger.debug("probe failed {} : {}", peer, e.toString());
+            }
+        }
+    }
+
+    /**
+     * 応答ピアへの RTT の推定値を取得する
+     * @param peer 応答ピア (直接要求の宛先)
+     * @return 推定値 (ナノ秒) locality を考慮した選択が無効、または測定値がない場合は -1
+     */
+    public long getRttEstimate(Endpoint peer) {
+        LocalitySelector sel = this.locality;
+        return (sel == null) ? -1 : sel.rtt.estimate(peer);
+    }
+
+    /**
+     * このインスタンスの使用を終了する
+     * 直接要求の受け付けと遅延処理を停止し、MBean の登録を解除し、ジャーナルを閉じる
+     */
+    public synchronized void fin() {
+        RegistrationJournal j = journal;
+        journal = null;
+        if (j != null) {
+            try {
+                j.close();
+            } catch (IOException e) {
+                logger.warn("", e);
+            }
+        }
+        disableLocalityAwareness();
+        responderCache = null;
+        if (invoker != null) {
+            invoker.fin();
+            invoker = null;
+        }
+        if (scheduler != null) {
+            scheduler.shutdownNow();
+            scheduler = null;
+        }
+        metrics.unregisterMBean();
+    }
+
+    /**
+     * Group ID を prefix とし、ランダムな suffix を持つキーの生成
+     * @param groupid Group ID
+     * @return
+     */
+    private LTKey newRandomKey(String groupid) {
+        return new LTKey(groupid, Id.newId(suffixLength));
+    }
+
+    /**
+     * 要求を受けたピアでの listener の呼び出し方を設定する
+     * @param mode
+     */
+    public void setDispatchMode(DispatchMode mode) {
+        if (mode == null)
+            throw new IllegalArgumentException("mode should not be null");
+        this.dispatchMode = mode;
+    }
+
+    /**
+     * 要求を受けたピアでの listener の呼び出し方を取得する
+     * @return
+     */
+    public DispatchMode getDispatchMode() {
+        return dispatchMode;
+    }
+
+    /**
+     * 計測値を取得する
+     * @return
+     */
+    public AnycastMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * トレース結果の通知先を設定する
+     * @param tracer 通知先 null の場合はトレースを無効にする
+     */
+    public void setTracer(AnycastTracer tracer) {
+        this.tracer = tracer;
+    }
+
+    /**
+     * トレース結果の通知先を取得する
+     * @return
+     */
+    public AnycastTracer getTracer() {
+        return tracer;
+    }
+
+    /**
+     * 指定された GroupID に Anycast する
+     * @param groupid Anycast 対象の Group ID
+     * @param obj {@link SimpleAnycastListener#onReceive(String, Object)} に引数として渡される任意のオブジェクト
+     * @return {@link SimpleAnycastListener#onReceive(String, Object)} の返り値が返る null 時はノード未発見
+     * @throws ProtocolUnsupportedException
      * @throws IOException
      */
     public R anycast(String groupid, T obj) throws ProtocolUnsupportedException, IOException {
+        return anycast(groupid, obj, null);
+    }
+
+    /**
+     * 指定された GroupID のうち、属性が filter の条件を満たすハンドルに Anycast する
+     * 条件は応答ピアで評価され、満たさないハンドルへの要求は隣接するキーへ転送される。
+     * 条件付きの anycast では応答ピアのキャッシュを用いない。
+     * @param groupid Anycast 対象の Group ID
+     * @param obj {@link SimpleAnycastListener#onReceive(String, Object)} に引数として渡される任意のオブジェクト
+     * @param filter 応答するハンドルの条件 null の場合は条件なし
+     * @return {@link SimpleAnycastListener#onReceive(String, Object)} の返り値が返る null 時はノード未発見
+     * @throws ProtocolUnsupportedException
+     * @throws IOException
+     */
+    public R anycast(String groupid, T obj, AnycastFilter filter) throws ProtocolUnsupportedException, IOException {
         if (groupid == null || groupid.isEmpty())
             throw new IllegalArgumentException("groupid should not be null or empty");
 
+        if (!metrics.isEnabled())
+            return anycast0(groupid, obj, filter, false);
+
+        long start = System.nanoTime();
+        boolean recorded = false;
+        try {
+            R result = anycast0(groupid, obj, filter, true);
+            metrics.anycastCompleted(groupid, System.nanoTime() - start, result != null);
+            recorded = true;
+            return result;
+        } catch (NetworkTimeoutException e) {
+            metrics.anycastTimedOut(groupid, System.nanoTime() - start);
+            recorded = true;
+            throw e;
+        } finally {
+            // RuntimeException を含むその他の失敗
+            if (!recorded)
+                metrics.anycastFailed(groupid);
+        }
+    }
+
+    /**
+     * {@link #anycast(String, Serializable, AnycastFilter)} の本体
+     * @param groupid Anycast 対象の Group ID
+     * @param obj listener に渡す引数
+     * @param filter 応答するハンドルの条件 (null可)
+     * @param measure 計測を行う場合 true
+     * @return
+     * @throws ProtocolUnsupportedException
+     * @throws IOException
+     */
+    private R anycast0(String groupid, T obj, AnycastFilter filter, boolean measure) throws ProtocolUnsupportedException, IOException {
+        AnycastTracer tr = this.tracer;
+        AnycastTrace trace = (tr != null) ? new AnycastTrace(ThreadLocalRandom.current().nextLong(), groupid) : null;
+        CallContext ctx = new CallContext(groupid, filter, measure, trace);
+
+        try {
+            R result = discover(ctx, obj);
+            if (trace != null)
+                trace.found = (result != null);
+            return result;
+        } catch (IOException | RuntimeException e) {
+            if (trace != null)
+                trace.exception = e;
+            throw e;
+        } finally {
+            if (trace != null) {
+                trace.totalNanos = System.nanoTime() - ctx.start;
+                trace.responder = ctx.responder;
+                trace.timing = (ctx.report != null) ? ctx.report.timing : null;
+                try {
+                    tr.onTrace(trace);
+                } catch (Exception e) {
+                    logger.warn("", e);
+                }
+            }
+        }
+    }
+
+    /**
+     * 指定された GroupID に属するすべてのハンドルに要求を送り、結果を集約する
+     * @param groupid 対象の Group ID
+     * @param obj {@link SimpleAnycastListener#onReceive(String, Object)} に引数として渡される任意のオブジェクト
+     * @param aggregator 結果の集約関数
+     * @return 集約結果
+     * @throws ProtocolUnsupportedException
+     * @throws IOException
+     */
+    public <A extends Serializable> GroupcastResult<A> groupcast(String groupid, T obj,
+            AnycastAggregator<R, A> aggregator) throws ProtocolUnsupportedException, IOException {
+        return groupcast(groupid, obj, null, aggregator);
+    }
+
+    /**
+     * 指定された GroupID のうち、属性が filter の条件を満たすすべてのハンドルに要求を送り、結果を集約する
+     * 要求は Group ID のキー区間全体への範囲探索として 1 度だけ送られる。
+     * 要求はピアにマッチしたキーごとに届くが、各応答ピアは最初に届いた要求に対してのみ
+     * ピア内のハンドルの結果を集約して返し、呼び出し側は応答を受け取るごとに集約する。
+     * ハンドルのローカルな有無効と filter は考慮され、{@link #setDispatchMode(DispatchMode)} は考慮されない。
+     * 応答がタイムアウトした場合は、それまでの集約結果を {@link GroupcastResult#isComplete()} が false の結果として返す。
+     * @param groupid 対象の Group ID
+     * @param obj {@link SimpleAnycastListener#onReceive(String, Object)} に引数として渡される任意のオブジェクト
+     * @param filter 応答するハンドルの条件 null の場合は条件なし
+     * @param aggregator 結果の集約関数
+     * @return 集約結果
+     * @throws ProtocolUnsupportedException
+     * @throws IOException
+     */
+    public <A extends Serializable> GroupcastResult<A> groupcast(String groupid, T obj, AnycastFilter filter,
+            AnycastAggregator<R, A> aggregator) throws ProtocolUnsupportedException, IOException {
+        if (groupid == null || groupid.isEmpty())
+            throw new IllegalArgumentException("groupid should not be null or empty");
+        if (aggregator == null)
+            throw new IllegalArgumentException("aggregator should not be null");
+
+        LTKey lower = LTKey.getMinusInfinity(groupid);
+        @SuppressWarnings({ "unchecked", "rawtypes" })
+        KeyRange<?> range = new KeyRange(lower, false, lower.getPlusInfinity(), false);
+        QueryPack<T> query = new QueryPack<>(lower, obj, filter, aggregator);
+        FutureQueue<?> fq = sg.request(serviceId, serviceId, range, query, GROUPCAST_TIMEOUT);
+        if (fq == null) {
+            logger.warn("null FutureQueue");
+            return new GroupcastResult<>(aggregator.identity(), 0, 0, false);
+        }
+
+        fq.setGetNextTimeout(FUTUREQUEUE_GETNEXT_TIMEOUT);
+        A total = aggregator.identity();
+        int responders = 0;
+        int members = 0;
+        boolean complete = true;
+        Set<Object> peers = new HashSet<>();
+        for (RemoteValue<?> rv : fq) {
+            if (rv == null) {
+                // getNextでtimeoutした場合
+                logger.warn("groupcast timed out for {}", groupid);
+                fq.cancel();
+                complete = false;
+                break;
+            }
+            if (rv.getException() != null || !(rv.getValue() instanceof GroupcastReply)) {
+                logger.warn("groupcast failed at {} : {}", rv.getPeer(), rv.getException());
+                complete = false;
+                continue;
+            }
+            if (!peers.add(rv.getPeer())) {
+                // 応答ピアで識別子が忘れられた場合などに生じうる 重複して集約しない
+                logger.debug("duplicate groupcast reply from {}", rv.getPeer());
+                continue;
+            }
+            GroupcastReply reply = (GroupcastReply) rv.getValue();
+            @SuppressWarnings("unchecked")
+            A partial = (A) reply.partial;
+            total = aggregator.combine(total, partial);
+            responders++;
+            members += reply.members;
+        }
+        logger.debug("groupcast returns {} from {} responders", total, responders);
+        return new GroupcastResult<>(total, responders, members, complete);
+    }
+
+    /**
+     * グループのサイズ (有効なハンドル数) の推定値を取得する
+     * 推定値は通常の anycast の応答から得た標本により更新され、追加の通信は行わない。
+     * 応答ピアのキャッシュによる直接要求と条件付きの anycast は標本とならない。
+     * @param groupid Group ID
+     * @return 推定値 標本がない場合は null
+     */
+    public GroupSizeEstimate estimateGroupSize(String groupid) {
+        if (groupid == null || groupid.isEmpty())
+            throw new IllegalArgumentException("groupid should not be null or empty");
+        return sizeEstimator.estimate(groupid);
+    }
+
+    /**
+     * グループのサイズを推定するため、listener を呼び出さない探索を行い標本を得る
+     * 標本は {@link #estimateGroupSize(String)} の推定値に反映される。
+     * @param groupid Group ID
+     * @param samples 探索回数
+     * @return 推定値 標本がない場合は null
+     * @throws ProtocolUnsupportedException
+     * @throws IOException
+     */
+    public GroupSizeEstimate sampleGroupSize(String groupid, int samples) throws ProtocolUnsupportedException, IOException {
+        if (groupid == null || groupid.isEmpty())
+            throw new IllegalArgumentException("groupid should not be null or empty");
+        for (int i = 0; i < samples; i++) {
+            LTKey searchkey = newRandomKey(groupid);
+            QueryPack<T> query = new QueryPack<>(QueryPack.QPMethod.SAMPLE, searchkey, null);
+            @SuppressWarnings({ "unchecked", "rawtypes" })
+            KeyRange<?> range = new KeyRange(searchkey.getMinusInfinity(), false, searchkey, true);
+            LTKey matched = sampleKey(new LowerUpper(range, false, 1), query);
+            if (matched == null) {
+                @SuppressWarnings({ "unchecked", "rawtypes" })
+                KeyRange<?> range2 = new KeyRange(searchkey, false, searchkey.getPlusInfinity(), false);
+                matched = sampleKey(new LowerUpper(range2, false, 1), query.forWraparound());
+            }
+            if (matched == null)
+                break;  // グループが空
+            sizeEstimator.record(searchkey, matched);
+        }
+        return sizeEstimator.estimate(groupid);
+    }
+
+    /**
+     * SAMPLE クエリを送り、応答したキーを得る
+     * @param dst 探索区間
+     * @param query SAMPLE クエリ
+     * @return 応答したキー 応答がない場合は null
+     * @throws ProtocolUnsupportedException
+     * @throws IOException
+     */
+    private LTKey sampleKey(LowerUpper dst, QueryPack<T> query) throws ProtocolUnsupportedException, IOException {
+        FutureQueue<?> fq = sg.request(serviceId, serviceId, dst, query, 100);
+        if (fq == null) {
+            logger.warn("null FutureQueue");
+            return null;
+        }
+        fq.setGetNextTimeout(FUTUREQUEUE_GETNEXT_TIMEOUT);
+        for (RemoteValue<?> rv : fq) {
+            if (rv == null) {
+                // getNextでtimeoutした場合
+                fq.cancel();
+                throw new NetworkTimeoutException();
+            }
+            if (rv.getValue() instanceof LTKey)
+                return (LTKey) rv.getValue();
+        }
+        return null;
+    }
+
+    /**
+     * LowerUpper 探索により groupid に属するノードを探索し、listener を呼び出す
+     * 応答ピアのキャッシュが有効な場合は、まずキャッシュした応答ピアに直接要求を送る
+     * @param ctx 呼び出しの状態
+     * @param obj listener に渡す引数
+     * @return
+     * @throws ProtocolUnsupportedException
+     * @throws IOException
+     */
+    private R discover(CallContext ctx, T obj) throws ProtocolUnsupportedException, IOException {
+        String groupid = ctx.groupid;
+        AnycastTrace trace = ctx.trace;
+        ResponderCache cache = this.responderCache;
+        RPCInvoker<DirectAnycastIf, Endpoint> inv = this.invoker;
+        if (inv == null)
+            cache = null;
+
         LTKey searchkey = newRandomKey(groupid);
-        QueryPack<T> query = new QueryPack<>(QueryPack.QPMethod.DISCOVER, searchkey, obj);
+        TraceContext tc = (trace != null)
+                ? new TraceContext(trace.getTraceId(), System.currentTimeMillis(), false) : null;
+        // ResponderReport はキャッシュとグループのサイズの推定に用いる
+        QueryPack<T> query = new QueryPack<>(QueryPack.QPMethod.DISCOVER, searchkey, obj, tc, ctx.filter, true);
+
+        LocalitySelector sel = this.locality;
+        if (cache != null && ctx.filter == null) {
+            // キャッシュした応答ピアが条件を満たすとは限らないため、条件付きの場合は用いない
+            ResponderCache.Entry e;
+            if (sel == null) {
+                e = cache.pick(groupid);
+            } else if (ThreadLocalRandom.current().nextInt(100) < LOCALITY_EXPLORE_PERCENT) {
+                e = null;   // 新たな応答ピアを得るため SkipGraph 上を探索する
+            } else {
+                e = sel.select(cache.valid(groupid), localityTag);
+            }
+            if (e != null) {
+                long dstart = System.nanoTime();
+                RemoteValue<?> rv = directRequest(inv, cache, e, query.withTarget(e.key));
+                long elapsed = System.nanoTime() - dstart;
+                ResponderReport report = (rv != null) ? DiscoverReply.reportOf(rv.getValue()) : null;
+                if (report != null) {
+                    responseTime.record(e.endpoint, elapsed);
+                    // 応答時間から応答ピアでの処理時間を除いたものを RTT とする
+                    if (sel != null)
+                        sel.rtt.record(e.endpoint, elapsed - report.handlingNanos);
+                }
+                if (ctx.measure)
+                    metrics.directRequest(groupid, rv != null);
+                if (rv != null) {
+                    ctx.record(rv);
+                    if (trace != null) {
+                        trace.direct = true;
+                        trace.firstPhaseNanos = System.nanoTime() - ctx.start;
+                    }
+                    @SuppressWarnings("unchecked")
+                    R info = (R) DiscoverReply.valueOf(rv.getValue());
+                    logger.debug("direct request returns {}", info);
+                    return info;
+                }
+                cache.evict(groupid, e);
+            }
+        }
+        long ostart = System.nanoTime();
 
         // (MIN, serachkey) の区間を探索する
         // KeyComparator.getMinusInfinity ではクラス単位の最大値最小値となるため wrap around 時に
@@ -375,31 +1476,19 @@ public class SimpleAnycast<T extends Serializable, R extends Serializable> {
             return null;
         }
 
-        fq.setGetNextTimeout(FUTUREQUEUE_GETNEXT_TIMEOUT);
-        boolean found = false;
         List<R> nodes = new ArrayList<>();
-        for (RemoteValue<?> rv : fq) {
-            if (rv == null) {
-                // getNextでtimeoutした場合
-                if (nodes.isEmpty()) {
-                    fq.cancel();
-                    throw new NetworkTimeoutException();
-                }
-            } else {
-                found = true;
-                @SuppressWarnings("unchecked")
-                R info = (R) rv.getValue();
-                if (info != null) {
-                    nodes.add(info);
-                }
-            }
-        }
+        boolean found = collect(fq, nodes, ctx);
+        if (trace != null)
+            trace.firstPhaseNanos = System.nanoTime() - ctx.start;
         if (!found) {
             /*
              * 見つからない場合は、wraparoundさせたLowerUpper
              * をセットし、requestを再発行する。
              */
             logger.debug("do wraparound");
+            if (ctx.measure)
+                metrics.wraparound(groupid);
+            long wstart = (trace != null) ? System.nanoTime() : 0L;
 
             // (serachkey, MAX) の区間を探索する
             // KeyComparator.getMinusInfinity ではクラス単位の最大値最小値となるため wrap around 時に
@@ -410,29 +1499,25 @@ public class SimpleAnycast<T extends Serializable, R extends Serializable> {
                     searchkey.getPlusInfinity(), false);
             dst = new LowerUpper(range2, false, 1);     // MAX を越えない最大のキーを探索するための Destination
             fq = sg.request(serviceId, serviceId, dst,
-                    query, 100);
+                    query.forWraparound(), 100);
             if (fq == null) {
                 logger.warn("null FutureQueue");
                 return null;
             }
 
-            fq.setGetNextTimeout(FUTUREQUEUE_GETNEXT_TIMEOUT);
-            for (RemoteValue<?> rv : fq) {
-                if (rv == null) {
-                    // getNextでtimeoutした場合
-                    if (nodes.isEmpty()) {
-                        fq.cancel();
-                        throw new NetworkTimeoutException();
-                    }
-                } else {
-                    found = true;
-                    @SuppressWarnings("unchecked")
-                    R info = (R) rv.getValue();
-                    if (info != null) {
-                        nodes.add(info);
-                    }
-                }
-            }
+            collect(fq, nodes, ctx);
+            if (trace != null)
+                trace.wraparoundNanos = System.nanoTime() - wstart;
+        }
+        if (ctx.filter == null && ctx.report != null && ctx.report.matchedKey != null) {
+            // 条件付きの場合は条件を満たさないキーを飛ばすため、間隔がグループのサイズを表さない
+            sizeEstimator.record(searchkey, ctx.report.matchedKey);
+        }
+        if (cache != null && ctx.report != null && ctx.report.servedKey != null
+                && ctx.report.directEndpoint != null) {
+            cache.put(groupid, ctx.report.directEndpoint, ctx.report.servedKey, ctx.report.localityTag);
+            // SkipGraph 上の探索の所要時間を直接要求の応答時間の初期値とする (実際より長い)
+            responseTime.recordIfAbsent(ctx.report.directEndpoint, System.nanoTime() - ostart);
         }
         if (nodes.isEmpty()) {
             logger.warn("No avalable result");
@@ -443,6 +1528,240 @@ public class SimpleAnycast<T extends Serializable, R extends Serializable> {
         return nodes.get(0);
     }
 
+    /**
+     * キャッシュした応答ピアに直接要求を送る
+     * 応答ピアが応答しない場合は、その応答ピアのエントリをすべて破棄する
+     * @param inv RPC
+     * @param cache 応答ピアのキャッシュ
+     * @param e キャッシュのエントリ
+     * @param query 探索対象キーをエントリのキーとしたクエリ
+     * @return 応答 応答がない、または応答ピアに有効なハンドルがない場合は null
+     */
+    private RemoteValue<?> directRequest(RPCInvoker<DirectAnycastIf, Endpoint> inv, ResponderCache cache,
+            ResponderCache.Entry e, QueryPack<T> query) {
+        try {
+            DirectAnycastIf stub = inv.getStub(DirectAnycastIf.class, serviceId, e.endpoint, directTimeout(e.endpoint));
+            return stub.request(query);
+        } catch (Exception ex) {
+            logger.debug("direct request failed {} : {}", e, ex.toString());
+            cache.evict(e.endpoint);
+            return null;
+        }
+    }
+
+    /**
+     * 応答ピアへの直接要求のタイムアウト時間を得る
+     * @param peer 応答ピア
+     * @return タイムアウト時間 (ms)
+     */
+    int directTimeout(Endpoint peer) {
+        long rto = responseTime.timeout(peer);
+        if (rto < 0)
+            return DIRECT_REQUEST_TIMEOUT;
+        long ms = TimeUnit.NANOSECONDS.toMillis(rto) + 1;
+        return (int) Math.max(DIRECT_REQUEST_MIN_TIMEOUT, Math.min(ms, DIRECT_REQUEST_TIMEOUT));
+    }
+
+    /**
+     * FutureQueue から応答を取り出し、null でない値を nodes に追加する
+     * @param fq 応答の FutureQueue
+     * @param nodes 値の格納先
+     * @param ctx 呼び出しの状態
+     * @return 応答があれば true
+     * @throws NetworkTimeoutException 値を得る前に getNext がタイムアウトした場合
+     */
+    private boolean collect(FutureQueue<?> fq, List<R> nodes, CallContext ctx) throws NetworkTimeoutException {
+        fq.setGetNextTimeout(FUTUREQUEUE_GETNEXT_TIMEOUT);
+        boolean found = false;
+        for (RemoteValue<?> rv : fq) {
+            if (rv == null) {
+                // getNextでtimeoutした場合
+                if (nodes.isEmpty()) {
+                    fq.cancel();
+                    throw new NetworkTimeoutException();
+                }
+            } else {
+                found = true;
+                ctx.record(rv);
+                @SuppressWarnings("unchecked")
+                R info = (R) DiscoverReply.valueOf(rv.getValue());
+                if (info != null) {
+                    nodes.add(info);
+                }
+            }
+        }
+        return found;
+    }
+
+    /**
+     * マッチしたキーに対応するハンドルの listener を呼び出す
+     * @param query 受信したクエリ
+     * @param keys マッチしたキー
+     * @return 応答 listener を呼び出すハンドルがなかった場合は null
+     *         報告を付加する場合、値は {@link DiscoverReply} となる
+     */
+    private RemoteValue<?> dispatch(QueryPack<T> query, Collection<? extends ComparableKey<?>> keys) {
+        boolean measure = metrics.isEnabled();
+        boolean traced = (query.trace != null);
+        boolean report = traced || query.reportResponder;
+        long received = report ? System.nanoTime() : 0L;
+        long receiveDelay = traced ? System.currentTimeMillis() - query.trace.sendTimeMillis : 0L;
+        long listenerNanos = 0L;
+        R info = null;
+        LTKey servedKey = null;
+        LTKey servedMatch = null;
+        DispatchMode mode = dispatchMode;
+        for (ComparableKey<?> c : keys) {
+            LTKey matchedkey = (LTKey) c;
+            logger.debug("onReceiveRequest discover matched:{}", matchedkey);
+
+            SimpleAnycastHandle<T, R> h = am.get(matchedkey);
+            if (h != null && mode != DispatchMode.ALL) {
+                // ピア内の同じグループのハンドルから 1 つだけを選んで呼び出す
+                if (servedKey != null)
+                    break;
+                SimpleAnycastHandle<T, R> selected = localIndex.select(matchedkey.getPrefix(), mode);
+                if (selected != null && (query.filter == null || accepts(query.filter, selected)))
+                    h = selected;
+            }
+            if (h != null && (!h.isDiscoverable() || !h.isEnabled())) {
+                logger.debug("onReceiveRequest disabled or undiscoverable handle:{}", matchedkey);
+            } else if (h != null && query.filter != null && !accepts(query.filter, h)) {
+                logger.debug("onReceiveRequest filtered handle:{}", matchedkey);
+            } else if (h != null) {
+                servedKey = h.getLTKey();
+                if (servedMatch == null)
+                    servedMatch = matchedkey;
+                long start = (measure || traced) ? System.nanoTime() : 0L;
+                boolean failed = false;
+                h.beginRequest();
+                try {
+                    SimpleAnycastListener<T, R> listener = h.getListener();
+                    if (listener != null) {
+                        String groupid = matchedkey.getPrefix();
+                        info = listener.onReceive(groupid, (T) query.value);
+                    }
+                } catch (Exception e) {
+                    failed = true;
+                    logger.error("", e);
+                } finally {
+                    h.endRequest();
+                }
+                if (measure || traced) {
+                    long elapsed = System.nanoTime() - start;
+                    listenerNanos += elapsed;
+                    if (measure)
+                        metrics.listenerCompleted(h, elapsed, failed);
+                }
+            } else {
+                // SkipGraph 上にキーがあるが、対応する Handle がない状態
+                // 通常は生じない
+                logger.warn("No handled key : {}", matchedkey);
+            }
+        }
+        if (servedKey == null)
+            return null;
+        logger.debug("onReceiveRequest discover result :{}", info);
+
+        if (!report)
+            return new RemoteValue<>(sg.getPeerId(), info);
+
+        long handling = System.nanoTime() - received;
+        ResponderTiming timing = null;
+        if (traced) {
+            logger.debug("onReceiveRequest trace:{} wraparound:{}",
+                    Long.toHexString(query.trace.traceId), query.trace.wraparound);
+            timing = new ResponderTiming(receiveDelay, handling, listenerNanos);
+        }
+        RPCInvoker<DirectAnycastIf, Endpoint> inv = invoker;
+        ResponderReport rr = new ResponderReport(servedKey, servedMatch, (inv != null) ? inv.getEndpoint() : null,
+                localityTag, handling, timing);
+        return new RemoteValue<>(sg.getPeerId(), new DiscoverReply(info, rr));
+    }
+
+    /**
+     * ピア内のグループのすべてのハンドルの listener を呼び出し、結果を集約する
+     * 同じ要求はマッチしたキーごとに届くため、最初の要求でのみ集約する
+     * @param query 受信した GROUPCAST クエリ
+     * @param aggregator 集約関数
+     * @return 集約結果 同じ要求を既に処理した場合は null
+     */
+    private <A extends Serializable> GroupcastReply aggregate(QueryPack<T> query,
+            AnycastAggregator<R, A> aggregator) {
+        synchronized (groupcastSeen) {
+            if (groupcastSeen.put(query.queryId, Boolean.TRUE) != null)
+                return null;
+        }
+        boolean measure = metrics.isEnabled();
+        A acc = aggregator.identity();
+        int members = 0;
+        for (SimpleAnycastHandle<T, R> h : localIndex.handles(query.targetKey.getPrefix())) {
+            // SkipGraph 上にキーがないハンドルは範囲探索の対象とならない
+            if (!h.isDiscoverable() || !h.isEnabled()
+                    || (query.filter != null && !accepts(query.filter, h)))
+                continue;
+            SimpleAnycastListener<T, R> listener = h.getListener();
+            if (listener == null)
+                continue;
+            long start = measure ? System.nanoTime() : 0L;
+            boolean failed = false;
+            h.beginRequest();
+            try {
+                R info = listener.onReceive(h.getGroupId(), query.value);
+                acc = aggregator.accumulate(acc, info);
+                members++;
+            } catch (Exception e) {
+                failed = true;
+                logger.error("", e);
+            } finally {
+                h.endRequest();
+            }
+            if (measure)
+                metrics.listenerCompleted(h, System.nanoTime() - start, failed);
+        }
+        return new GroupcastReply(acc, members);
+    }
+
+    /**
+     * ハンドルが条件を満たすか判定する
+     * 条件の評価で例外が生じた場合は満たさないものとする
+     * @param filter 条件
+     * @param h ハンドル
+     * @return
+     */
+    private boolean accepts(AnycastFilter filter, SimpleAnycastHandle<T, R> h) {
+        try {
+            return filter.accept(h.getAttributes());
+        } catch (Exception e) {
+            logger.warn("filter failed {} : {}", filter, e.toString());
+            return false;
+        }
+    }
+
+    /**
+     * 直接要求の受け付け
+     * RPC で呼び出されるため public としている
+     */
+    public class DirectRequestReceiver implements DirectAnycastIf {
+        DirectRequestReceiver() {
+        }
+
+        @Override
+        public RemoteValue<?> request(Serializable q) {
+            @SuppressWarnings("unchecked")
+            QueryPack<T> query = (QueryPack<T>) q;
+            logger.debug("direct request peerId:{} {}", sg.getPeerId(), query);
+            if (query.method != QueryPack.QPMethod.DISCOVER)
+                return null;
+            return dispatch(query, Collections.singletonList(query.targetKey));
+        }
+
+        @Override
+        public String ping() {
+            return localityTag;
+        }
+    }
+
     /**
      * OverlayListener impl
      */
@@ -456,33 +1775,42 @@ public class SimpleAnycast<T extends Serializable, R extends Serializable> {
             assert query != null;
 
             if (query.method == QueryPack.QPMethod.DISCOVER) {
-                R info = null;
                 logger.debug("onReceiveRequest discovered:{}", query.targetKey);
+                RemoteValue<?> val = dispatch(query, rmsg.getMatchedKeys());
+                if (val == null) {
+                    // 有効な (条件を満たす) ハンドルがない場合は、マッチしたキーのうち最小のものより小さいキーへ転送する
+                    LTKey lowest = null;
+                    for (ComparableKey<?> c : rmsg.getMatchedKeys()) {
+                        if (lowest == null || ((LTKey) c).compareTo(lowest) < 0)
+                            lowest = (LTKey) c;
+                    }
+                    if (lowest != null)
+                        return forward(query, lowest);
+                    val = new RemoteValue<>(sg.getPeerId(), null);
+                }
+                return FutureQueue.singletonQueue(val);
+            } else if (query.method == QueryPack.QPMethod.SAMPLE) {
+                // 被探索かつ有効なハンドルのキーを返す ない場合は DISCOVER と同様に転送する
+                LTKey lowest = null;
                 for (ComparableKey<?> c : rmsg.getMatchedKeys()) {
                     LTKey matchedkey = (LTKey) c;
-                    logger.debug("onReceiveRequest discover matched:{}", matchedkey);
-
                     SimpleAnycastHandle<T, R> h = am.get(matchedkey);
-                    if (h != null) {
-                        try {
-                            SimpleAnycastListener<T, R> listener = h.getListener();
-                            if (listener != null) {
-                                String groupid = matchedkey.getPrefix();
-                                info = listener.onReceive(groupid, (T) query.value);
-                            }
-                        } catch (Exception e) {
-                            logger.error("", e);
-                        }
-                    } else {
-                        // SkipGraph 上にキーがあるが、対応する Handle がない状態
-                        // 通常は生じない
-                        logger.warn("No handled key : {}", matchedkey);
-                    }
+                    if (h != null && h.isDiscoverable() && h.isEnabled())
+                        return FutureQueue.singletonQueue(new RemoteValue<>(sg.getPeerId(), matchedkey));
+                    if (lowest == null || matchedkey.compareTo(lowest) < 0)
+                        lowest = matchedkey;
                 }
-                logger.debug("onReceiveRequest discover result :{}", info.toString());
-
-                RemoteValue<R> val = new RemoteValue<>(sg.getPeerId(), info);
-                return FutureQueue.singletonQueue(val);
+                if (lowest != null)
+                    return forward(query, lowest);
+                return FutureQueue.emptyQueue();
+            } else if (query.method == QueryPack.QPMethod.GROUPCAST) {
+                @SuppressWarnings("unchecked")
+                AnycastAggregator<R, Serializable> aggregator = (AnycastAggregator<R, Serializable>) query.aggregator;
+                GroupcastReply reply = aggregate(query, aggregator);
+                logger.debug("onReceiveRequest groupcast result :{}", reply);
+                if (reply == null)
+                    return FutureQueue.emptyQueue();
+                return FutureQueue.singletonQueue(new RemoteValue<>(sg.getPeerId(), reply));
             } else {
                 // サポート外クエリ
                 assert false;
@@ -490,6 +1818,30 @@ public class SimpleAnycast<T extends Serializable, R extends Serializable> {
             }
         }
 
+        /**
+         * 無効な、または条件を満たさないハンドルに届いた要求を、そのキー未満の最大のキーへ転送する
+         * 転送できない場合は空の FutureQueue を返す (要求元では未発見として扱われる)
+         * @param query 受信したクエリ
+         * @param declined 無効なハンドルのキー
+         * @return 転送先からの応答
+         */
+        private FutureQueue<?> forward(QueryPack<T> query, LTKey declined) {
+            if (query.hops >= query.maxHops()) {
+                logger.debug("onReceiveRequest decline, too many hops:{}", query);
+                return FutureQueue.emptyQueue();
+            }
+            @SuppressWarnings({ "unchecked", "rawtypes" })
+            KeyRange<?> range = new KeyRange(query.lowerBound(), false, declined, false);
+            LowerUpper dst = new LowerUpper(range, false, 1);
+            try {
+                FutureQueue<?> fq = sg.forwardQueryToMaxLessThan(serviceId, serviceId, dst, query.forwarded());
+                return (fq != null) ? fq : FutureQueue.emptyQueue();
+            } catch (IllegalStateException e) {
+                logger.warn("", e);
+                return FutureQueue.emptyQueue();
+            }
+        }
+
         @Override
         public void onReceive(Transport<Destination> trans, ReceivedMessage rmsg) {
             logger.warn("Unexpected call : onReceive(Transport<LowerUpper> trans, ReceivedMessage rmsg)");
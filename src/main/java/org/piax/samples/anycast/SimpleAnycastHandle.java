@@ -2,22 +2,45 @@ package org.piax.samples.anycast;
 
 import java.io.IOException;
 import java.io.Serializable;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 /**
  * 被 Anycast 側で保持するハンドルクラス
  * 
  * このハンドルを介して被探索の有無効を切り換えることができる
  *
+ * 被探索の有無効は 2 段階で切り換えられる。
+ * {@link #setDiscoverable()} / {@link #setUndiscoverable()} は SkipGraph 上のキーを追加削除する。
+ * {@link #enable()} / {@link #disable()} はローカルな状態のみを切り換え、
+ * 無効なハンドルへの要求は応答ピアで隣接するキーへ転送される。
+ * 無効状態が {@link SimpleAnycast#SOFT_DISABLE_IDLE_TIMEOUT} 続いた場合に限りキーを削除する。
+ *
+ * ハンドルに属性を設定すると、{@link AnycastFilter} 付きの anycast で条件の判定に用いられる。
+ *
  * @param <T> Anycast 時の引数の型
  * @param <R> Anycast 時の返り値の型
  */
 public class SimpleAnycastHandle<T extends Serializable, R extends Serializable> {
+    private static final Logger logger = LoggerFactory.getLogger(SimpleAnycastHandle.class);
+
     private final SimpleAnycast<T, R> simpleAnyCast;
     private SimpleAnycast.LTKey myKey;
     private volatile SimpleAnycastListener<T, R> listener;
 
     private volatile boolean discoverable = false;  // 被探索フラグ true:有効 false:無効
     private volatile boolean avalable = true;       // 破棄フラグ dispose 後は false
+    private volatile boolean enabled = true;        // ローカルな有効フラグ true:有効 false:無効
+    private ScheduledFuture<?> pendingRemoval = null;   // 無効化後のキー削除予約
+    private boolean removedByDisable = false;       // 無効化によりキーを削除した場合 true
+    private final AtomicInteger outstanding = new AtomicInteger();  // 実行中の listener 呼び出し数
+    private volatile Map<String, Serializable> attributes = Collections.emptyMap();  // 公開する属性 (copy on write)
 
     SimpleAnycastHandle(SimpleAnycast<T, R> simpleAnyCast, SimpleAnycast.LTKey handlekey,
             SimpleAnycastListener<T, R> listener) {
@@ -60,6 +83,40 @@ public class SimpleAnycastHandle<T extends Serializable, R extends Serializable>
         return prev_listener;
     }
 
+    /**
+     * 属性を設定する
+     * 設定した属性は {@link AnycastFilter} による絞り込みに用いられる
+     * @param name 属性名
+     * @param value 値 null の場合は属性を削除する
+     */
+    public synchronized void setAttribute(String name, Serializable value) {
+        if (name == null)
+            throw new IllegalArgumentException("name should not be null");
+        Map<String, Serializable> m = new HashMap<>(attributes);
+        if (value == null)
+            m.remove(name);
+        else
+            m.put(name, value);
+        attributes = m.isEmpty() ? Collections.<String, Serializable>emptyMap() : Collections.unmodifiableMap(m);
+    }
+
+    /**
+     * 属性を取得する
+     * @param name 属性名
+     * @return 値 設定されていない場合は null
+     */
+    public Serializable getAttribute(String name) {
+        return attributes.get(name);
+    }
+
+    /**
+     * すべての属性を取得する
+     * @return 変更不可の Map
+     */
+    public Map<String, Serializable> getAttributes() {
+        return attributes;
+    }
+
     /**
      * 被探索可能とする
      * @throws IOException
@@ -67,10 +124,12 @@ public class SimpleAnycastHandle<T extends Serializable, R extends Serializable>
     public synchronized void setDiscoverable() throws IOException {
         if (!avalable)
             throw new IllegalStateException("This handle is already disposed");
+        removedByDisable = false;
         if (discoverable)
             return;
         this.simpleAnyCast.sg.addKey(this.simpleAnyCast.serviceId, myKey);
         discoverable = true;
+        this.simpleAnyCast.journal(myKey, true);
     }
 
     /**
@@ -80,10 +139,120 @@ public class SimpleAnycastHandle<T extends Serializable, R extends Serializable>
     public synchronized void setUndiscoverable() throws IOException {
         if (!avalable)
             throw new IllegalStateException("This handle is already disposed");
+        removedByDisable = false;
         if (!discoverable)
             return;
         this.simpleAnyCast.sg.removeKey(this.simpleAnyCast.serviceId, myKey);
         discoverable = false;
+        this.simpleAnyCast.journal(myKey, false);
+    }
+
+    /**
+     * 要求を受け付ける状態に戻す
+     * {@link #disable()} の後にキーが削除されていた場合に限り SkipGraph にキーを再登録する。
+     * {@link #setUndiscoverable()} による被探索状態は変更しない。
+     * @throws IOException
+     */
+    public synchronized void enable() throws IOException {
+        if (!avalable)
+            throw new IllegalStateException("This handle is already disposed");
+        cancelPendingRemoval();
+        enabled = true;
+        if (removedByDisable) {
+            setDiscoverable();
+        }
+    }
+
+    /**
+     * 要求を受け付けない状態にする
+     * SkipGraph 上のキーは残したまま、このハンドルへの要求は隣接するキーへ転送される。
+     * 無効状態が {@link SimpleAnycast#SOFT_DISABLE_IDLE_TIMEOUT} 続いた場合、キーを削除する。
+     */
+    public synchronized void disable() {
+        if (!avalable)
+            throw new IllegalStateException("This handle is already disposed");
+        if (!enabled)
+            return;
+        enabled = false;
+        int timeout = SimpleAnycast.SOFT_DISABLE_IDLE_TIMEOUT;
+        if (timeout >= 0 && discoverable) {
+            pendingRemoval = this.simpleAnyCast.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    removeIfIdle();
+                }
+            }, timeout);
+        }
+    }
+
+    /**
+     * 被探索状態でないハンドルを無効な状態とする (ジャーナルからの復元用)
+     * キーは既に削除されているため、削除の予約は行わず、{@link #enable()} により再登録する
+     */
+    synchronized void markDisabled() {
+        enabled = false;
+        removedByDisable = true;
+    }
+
+    /**
+     * 要求を受け付ける状態か
+     * @return
+     */
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * SkipGraph にキーが登録されているか
+     * @return
+     */
+    boolean isDiscoverable() {
+        return discoverable;
+    }
+
+    /**
+     * 実行中の listener 呼び出し数を取得する
+     * @return
+     */
+    public int getOutstanding() {
+        return outstanding.get();
+    }
+
+    /**
+     * listener 呼び出しの開始を記録する
+     */
+    void beginRequest() {
+        outstanding.incrementAndGet();
+    }
+
+    /**
+     * listener 呼び出しの終了を記録する
+     */
+    void endRequest() {
+        outstanding.decrementAndGet();
+    }
+
+    /**
+     * 無効状態が続いている場合に SkipGraph からキーを削除する
+     */
+    private synchronized void removeIfIdle() {
+        pendingRemoval = null;
+        if (!avalable || enabled || !discoverable)
+            return;
+        try {
+            setUndiscoverable();
+            removedByDisable = true;
+            logger.debug("removed idle key {}", myKey);
+        } catch (IOException e) {
+            logger.warn("", e);
+        }
+    }
+
+    private void cancelPendingRemoval() {
+        if (pendingRemoval != null) {
+            pendingRemoval.cancel(false);
+            pendingRemoval = null;
+        }
     }
 
     /**
@@ -102,10 +271,11 @@ public class SimpleAnycastHandle<T extends Serializable, R extends Serializable>
      * @throws IOException 
      */
     synchronized void dispose() throws IOException {
+        cancelPendingRemoval();
+        avalable = false;
         if (!discoverable)
             return;
         this.simpleAnyCast.sg.removeKey(this.simpleAnyCast.serviceId, myKey);
         discoverable = false;
-        avalable = false;
     }
 }
\ No newline at end of file
@@ -0,0 +1,242 @@
+package org.piax.samples.anycast.shell;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.piax.gtrans.NetworkTimeoutException;
+import org.piax.samples.anycast.GroupSizeEstimate;
+import org.piax.samples.anycast.GroupcastResult;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Shell のバッチモード
+ *
+ * 入力の終わりまでコマンドを読み、cast は最大 pipeline 個を並行して実行する。
+ * cast 以外のコマンドは、それまでの cast の完了を待ってから順に実行する。
+ * 各コマンドの結果は完了順に 1 行ずつ標準出力に出力する。
+ * JSON の場合は {"line":行番号,"cmd":コマンド,"args":引数,"status":状態,"latency_ms":実行時間,"result":結果,"error":例外}、
+ * CSV の場合はヘッダに続き line,cmd,args,status,latency_ms,result,error の形式とする。
+ * status は ok, null (cast の結果が null, size の標本がない), timeout, incomplete (gcast の一部の応答が
+ * 得られなかった), error のいずれかで、timeout, incomplete, error を失敗とする。
+ * result は cast の返り値、gcast の集約結果、size の推定値とする。
+ */
+class BatchRunner {
+    private static final Logger logger = LoggerFactory.getLogger(BatchRunner.class);
+
+    private final Shell shell;
+    private final boolean csv;
+    private final int pipeline;
+    private final Semaphore slots;
+    private final ExecutorService workers;
+    private final AtomicInteger failures = new AtomicInteger();
+
+    /**
+     * @param shell コマンドを実行する Shell
+     * @param format 出力形式 (json, csv)
+     * @param pipeline 同時に実行する cast の数
+     */
+    BatchRunner(Shell shell, String format, int pipeline) {
+        if (pipeline <= 0)
+            throw new IllegalArgumentException("pipeline should be positive");
+        this.shell = shell;
+        this.csv = "csv".equals(format);
+        this.pipeline = pipeline;
+        this.slots = new Semaphore(pipeline);
+        this.workers = Executors.newFixedThreadPool(pipeline);
+    }
+
+    /**
+     * 入力の終わり、または bye までコマンドを実行する
+     * @param reader 入力
+     * @return すべてのコマンドが失敗しなかった場合 true
+     * @throws IOException
+     * @throws InterruptedException
+     */
+    boolean run(BufferedReader reader) throws IOException, InterruptedException {
+        if (csv)
+            emit("line,cmd,args,status,latency_ms,result,error");
+        try {
+            int lineno = 0;
+            String line;
+            while ((line = reader.readLine()) != null) {
+                lineno++;
+                String trimmed = line.trim();
+                if (trimmed.isEmpty() || trimmed.startsWith("#"))
+                    continue;
+                final String[] cmds = trimmed.split("\\s+");
+                if ("cast".equals(cmds[0]) && cmds.length >= 3) {
+                    final int n = lineno;
+                    slots.acquire();
+                    workers.execute(new Runnable() {
+                        @Override
+                        public void run() {
+                            try {
+                                cast(n, cmds);
+                            } finally {
+                                slots.release();
+                            }
+                        }
+                    });
+                } else {
+                    // それまでの cast の完了を待つ
+                    slots.acquire(pipeline);
+                    try {
+                        if (!execute(lineno, cmds))
+                            break;
+                    } finally {
+                        slots.release(pipeline);
+                    }
+                }
+            }
+            slots.acquire(pipeline);
+            slots.release(pipeline);
+        } finally {
+            workers.shutdown();
+            workers.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+        }
+        return failures.get() == 0;
+    }
+
+    /**
+     * cast を実行し、結果を出力する
+     * @param lineno 行番号
+     * @param cmds コマンドと引数
+     */
+    private void cast(int lineno, String[] cmds) {
+        long start = System.nanoTime();
+        String status;
+        String result = null;
+        String error = null;
+        try {
+            result = shell.cast(cmds);
+            status = (result != null) ? "ok" : "null";
+        } catch (NetworkTimeoutException e) {
+            status = "timeout";
+            failures.incrementAndGet();
+        } catch (Exception e) {
+            status = "error";
+            error = e.toString();
+            failures.incrementAndGet();
+            logger.debug("", e);
+        }
+        record(lineno, cmds, status, System.nanoTime() - start, result, error);
+    }
+
+    /**
+     * cast 以外のコマンドを実行し、結果を出力する
+     * @param lineno 行番号
+     * @param cmds コマンドと引数
+     * @return bye の場合 false
+     */
+    private boolean execute(int lineno, String[] cmds) {
+        long start = System.nanoTime();
+        boolean cont = true;
+        String status = "ok";
+        String result = null;
+        String error = null;
+        try {
+            if ("gcast".equals(cmds[0]) && cmds.length >= 3) {
+                GroupcastResult<ArrayList<String>> r = shell.groupcast(cmds);
+                result = String.valueOf(r.getValue());
+                if (!r.isComplete()) {
+                    status = "incomplete";
+                    failures.incrementAndGet();
+                }
+            } else if ("size".equals(cmds[0]) && cmds.length >= 2) {
+                GroupSizeEstimate est = shell.size(cmds);
+                if (est != null)
+                    result = est.toString();
+                else
+                    status = "null";
+            } else {
+                cont = shell.execute(cmds);
+            }
+        } catch (Exception e) {
+            status = "error";
+            error = e.toString();
+            failures.incrementAndGet();
+            logger.debug("", e);
+        }
+        record(lineno, cmds, status, System.nanoTime() - start, result, error);
+        return cont;
+    }
+
+    private void record(int lineno, String[] cmds, String status, long nanos, String result, String error) {
+        String args = join(Arrays.copyOfRange(cmds, 1, cmds.length));
+        String latency = String.format(Locale.ROOT, "%.3f", nanos / 1e6);
+        if (csv) {
+            emit(lineno + "," + csv(cmds[0]) + "," + csv(args) + "," + status + "," + latency + ","
+                    + csv(result) + "," + csv(error));
+        } else {
+            emit("{\"line\":" + lineno + ",\"cmd\":" + json(cmds[0]) + ",\"args\":" + json(args)
+                    + ",\"status\":\"" + status + "\",\"latency_ms\":" + latency
+                    + ",\"result\":" + json(result) + ",\"error\":" + json(error) + "}");
+        }
+    }
+
+    private static void emit(String line) {
+        synchronized (System.out) {
+            System.out.println(line);
+            System.out.flush();
+        }
+    }
+
+    private static String join(String[] a) {
+        StringBuilder sb = new StringBuilder();
+        for (String s : a) {
+            if (sb.length() > 0)
+                sb.append(' ');
+            sb.append(s);
+        }
+        return sb.toString();
+    }
+
+    static String json(String s) {
+        if (s == null)
+            return "null";
+        StringBuilder sb = new StringBuilder("\"");
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            switch (c) {
+            case '"':
+                sb.append("\\\"");
+                break;
+            case '\\':
+                sb.append("\\\\");
+                break;
+            case '\n':
+                sb.append("\\n");
+                break;
+            case '\r':
+                sb.append("\\r");
+                break;
+            case '\t':
+                sb.append("\\t");
+                break;
+            default:
+                if (c < 0x20)
+                    sb.append(String.format(Locale.ROOT, "\\u%04x", (int) c));
+                else
+                    sb.append(c);
+            }
+        }
+        return sb.append('"').toString();
+    }
+
+    static String csv(String s) {
+        if (s == null)
+            return "";
+        if (s.indexOf(',') < 0 && s.indexOf('"') < 0 && s.indexOf('\n') < 0 && s.indexOf('\r') < 0)
+            return s;
+        return "\"" + s.replace("\"", "\"\"") + "\"";
+    }
+}
@@ -0,0 +1,198 @@
+package org.piax.samples.anycast.shell;
+
+import java.io.PrintStream;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.piax.gtrans.NetworkTimeoutException;
+import org.piax.samples.anycast.LatencyHistogram;
+import org.piax.samples.anycast.SimpleAnycast;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Shell の bench コマンドによる負荷生成
+ *
+ * concurrency 個のスレッドから {@link SimpleAnycast#anycast(String, java.io.Serializable)} を繰り返し呼び出し、
+ * スループット、レイテンシのパーセンタイル、タイムアウト数、null 結果数、応答ごとの回数の偏りを表示する。
+ * 応答の区別には返り値を用いるため、返り値がハンドルごとに異なる listener であることを前提とする。
+ */
+class Bench {
+    private static final Logger logger = LoggerFactory.getLogger(Bench.class);
+
+    private final SimpleAnycast<String, String> ha;
+    private final String groupid;
+    private final PrintStream out;
+    private int concurrency = 1;
+    private long count = 1000;      // 0 以下の場合は duration により終了する
+    private long durationMillis = 0;
+    private int payloadSize = 16;
+
+    private final LatencyHistogram latency = new LatencyHistogram();
+    private final AtomicLong ok = new AtomicLong();
+    private final AtomicLong nulls = new AtomicLong();
+    private final AtomicLong timeouts = new AtomicLong();
+    private final AtomicLong errors = new AtomicLong();
+    private final ConcurrentHashMap<String, AtomicLong> replies = new ConcurrentHashMap<>();
+
+    /**
+     * bench コマンドの引数を解釈する
+     * @param ha 対象の SimpleAnycast
+     * @param cmds bench &lt;groupid&gt; [-c concurrency] [-n count] [-d seconds] [-s payload]
+     * @param out 結果の表示先
+     * @return
+     */
+    static Bench parse(SimpleAnycast<String, String> ha, String[] cmds, PrintStream out) {
+        if (cmds.length < 2)
+            throw new IllegalArgumentException("groupid should be specified");
+        Bench b = new Bench(ha, cmds[1], out);
+        for (int i = 2; i < cmds.length; i++) {
+            String opt = cmds[i];
+            if (i + 1 >= cmds.length)
+                throw new IllegalArgumentException("no value for " + opt);
+            String val = cmds[++i];
+            if ("-c".equals(opt)) {
+                b.concurrency = Integer.parseInt(val);
+            } else if ("-n".equals(opt)) {
+                b.count = Long.parseLong(val);
+                b.durationMillis = 0;
+            } else if ("-d".equals(opt)) {
+                b.durationMillis = Long.parseLong(val) * 1000;
+                b.count = 0;
+            } else if ("-s".equals(opt)) {
+                b.payloadSize = Integer.parseInt(val);
+            } else {
+                throw new IllegalArgumentException("unknown option " + opt);
+            }
+        }
+        if (b.concurrency <= 0)
+            throw new IllegalArgumentException("concurrency should be positive");
+        if (b.count <= 0 && b.durationMillis <= 0)
+            throw new IllegalArgumentException("count or duration should be positive");
+        if (b.payloadSize < 0)
+            throw new IllegalArgumentException("payload should not be negative");
+        return b;
+    }
+
+    private Bench(SimpleAnycast<String, String> ha, String groupid, PrintStream out) {
+        this.ha = ha;
+        this.groupid = groupid;
+        this.out = out;
+    }
+
+    int getConcurrency() {
+        return concurrency;
+    }
+
+    long getCount() {
+        return count;
+    }
+
+    long getDurationMillis() {
+        return durationMillis;
+    }
+
+    int getPayloadSize() {
+        return payloadSize;
+    }
+
+    /**
+     * 負荷を生成し、終了後に結果を表示する
+     * @throws InterruptedException
+     */
+    void run() throws InterruptedException {
+        char[] chars = new char[payloadSize];
+        Arrays.fill(chars, 'x');
+        final String payload = new String(chars);
+        final AtomicLong remaining = new AtomicLong(count);
+        final long start = System.nanoTime();
+        final long deadline = start + TimeUnit.MILLISECONDS.toNanos(durationMillis);
+
+        out.println("bench for " + groupid + " concurrency=" + concurrency
+                + (count > 0 ? " count=" + count : " duration=" + durationMillis / 1000 + "s")
+                + " payload=" + payloadSize);
+        ExecutorService workers = Executors.newFixedThreadPool(concurrency);
+        for (int i = 0; i < concurrency; i++) {
+            workers.execute(new Runnable() {
+                @Override
+                public void run() {
+                    while (count > 0 ? remaining.getAndDecrement() > 0 : System.nanoTime() < deadline) {
+                        call(payload);
+                    }
+                }
+            });
+        }
+        workers.shutdown();
+        workers.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+        report(System.nanoTime() - start);
+    }
+
+    /**
+     * anycast を 1 回呼び出し、結果を記録する
+     * @param payload
+     */
+    private void call(String payload) {
+        long t = System.nanoTime();
+        try {
+            String result = ha.anycast(groupid, payload);
+            latency.record(System.nanoTime() - t);
+            if (result == null) {
+                nulls.incrementAndGet();
+                return;
+            }
+            ok.incrementAndGet();
+            AtomicLong c = replies.get(result);
+            if (c == null) {
+                AtomicLong prev = replies.putIfAbsent(result, c = new AtomicLong());
+                if (prev != null)
+                    c = prev;
+            }
+            c.incrementAndGet();
+        } catch (NetworkTimeoutException e) {
+            timeouts.incrementAndGet();
+        } catch (Exception e) {
+            errors.incrementAndGet();
+            logger.debug("", e);
+        }
+    }
+
+    /**
+     * 結果を表示する
+     * @param elapsedNanos 経過時間
+     */
+    private void report(long elapsedNanos) {
+        long total = ok.get() + nulls.get() + timeouts.get() + errors.get();
+        double secs = elapsedNanos / 1e9;
+        out.println(String.format(Locale.ROOT, "  %d calls in %.2f s (%.1f calls/s)", total, secs, total / secs));
+        out.println("  ok=" + ok.get() + " null=" + nulls.get() + " timeout=" + timeouts.get()
+                + " error=" + errors.get());
+        out.println(String.format(Locale.ROOT, "  latency ms: mean=%.2f p50=%.2f p90=%.2f p99=%.2f p99.9=%.2f max=%.2f",
+                latency.getMean() / 1e6, latency.getPercentile(50) / 1e6, latency.getPercentile(90) / 1e6,
+                latency.getPercentile(99) / 1e6, latency.getPercentile(99.9) / 1e6, latency.getMax() / 1e6));
+
+        int n = replies.size();
+        if (n == 0)
+            return;
+        long min = Long.MAX_VALUE;
+        long max = 0;
+        double sum = 0.0;
+        double sumsq = 0.0;
+        for (Map.Entry<String, AtomicLong> e : replies.entrySet()) {
+            long v = e.getValue().get();
+            min = Math.min(min, v);
+            max = Math.max(max, v);
+            sum += v;
+            sumsq += (double) v * v;
+        }
+        double mean = sum / n;
+        double cv = (mean > 0) ? Math.sqrt(Math.max(0.0, sumsq / n - mean * mean)) / mean : 0.0;
+        out.println(String.format(Locale.ROOT, "  responders: %d distinct replies, per reply min=%d max=%d mean=%.1f cv=%.2f",
+                n, min, max, mean, cv));
+    }
+}
@@ -2,9 +2,15 @@ package org.piax.samples.anycast.shell;
 
 import java.io.BufferedReader;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.InputStreamReader;
+import java.io.PrintStream;
+import java.io.Serializable;
 import java.net.InetAddress;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
 
 import org.piax.agent.AgentPeer;
 import org.piax.agent.AgentTransportManager;
@@ -13,6 +19,16 @@ import org.piax.common.ComparableKey;
 import org.piax.common.Destination;
 import org.piax.common.PeerLocator;
 import org.piax.gtrans.ov.sg.MSkipGraph;
+import org.piax.samples.anycast.Aggregators;
+import org.piax.samples.anycast.AnycastFilter;
+import org.piax.samples.anycast.AnycastTrace;
+import org.piax.samples.anycast.AnycastTracer;
+import org.piax.samples.anycast.AttributeFilters;
+import org.piax.samples.anycast.GroupSizeEstimate;
+import org.piax.samples.anycast.GroupStats;
+import org.piax.samples.anycast.HandleRestorer;
+import org.piax.samples.anycast.GroupcastResult;
+import org.piax.samples.anycast.HandleStats;
 import org.piax.samples.anycast.SimpleAnycast;
 import org.piax.samples.anycast.SimpleAnycastHandle;
 import org.piax.samples.anycast.SimpleAnycastListener;
@@ -28,13 +44,33 @@ import org.slf4j.LoggerFactory;
  * 起動オプション
  * -i <addr> Peer locator の設定
  * -s <addr> Seed locator の設定
+ * -j <file> 登録のジャーナルの設定 (以前の登録を復元する)
+ * -b <file> バッチモード file ("-" は標準入力) のコマンドを EOF まで実行して終了する
+ *           cast は並行して実行され、各コマンドの結果が 1 行ずつ標準出力に出力される
+ *           その他の表示は標準エラー出力に出力される
+ * -f <json|csv> バッチモードの出力形式 (デフォルトは json)
+ * -p <n> バッチモードで同時に実行する cast の数
+ *           バッチモードの終了コードは、すべてのコマンドが成功した場合 0、失敗したコマンドがある場合 1、
+ *           起動オプションに誤りがある場合 2 とする
  *
  * シェルコマンド
  * reg <groupid> groupid で指定された Anycast グループに入る
+ * regn <groupid> <n> groupid で指定された Anycast グループに n 個のハンドルを登録する (受信時の表示なし)
  * ureg <groupid> groupid で指定された Anycast グループから離脱する
- * cast <groupid> <msg> groupid で指定された Anycast グループに msg を anycast する
+ * cast <groupid> <msg> [cond...] groupid で指定された Anycast グループに msg を anycast する
+ *   cond は name (属性を持つ), name=value (値が等しい), name>=value (値が整数で value 以上) のいずれか
+ * gcast <groupid> <msg> [cond...] groupid で指定された Anycast グループのすべてのハンドルに msg を送る
+ * size <groupid> [n] groupid で指定された Anycast グループのサイズの推定値を表示する (n 回の標本を追加する)
+ * bench <groupid> [-c concurrency] [-n count | -d seconds] [-s payload] groupid への anycast の負荷を生成し結果を表示する
+ * attr <handle> <name> [value] handle の属性を設定する (value 省略時は削除)
  * disable <groupid> groupid で指定された Anycast グループから一時離脱する
  * enable <groupid> groupid で指定された Anycast グループに復帰する
+ * stat Anycast の統計情報を表示する
+ * trace <on|off> Anycast のトレース表示を切り換える
+ * dispatch <mode> 同一ピア上のハンドルへの listener の呼び出し方を設定する (ALL, LEAST_OUTSTANDING, ROUND_ROBIN)
+ * cache <on|off> 応答ピアのキャッシュを切り換える
+ * locality <on|off> [tag] locality を考慮した応答ピアの選択を切り換える (tag は自ピアの locality tag)
+ * help コマンドの一覧を表示する (未知のコマンドはエラーとなり、一覧を表示する)
  * bye
  */
 public class Shell {
@@ -44,9 +80,22 @@ public class Shell {
     private static final int DEFAULT_MY_LOCATORPORT = 12367;   // PIAX ポート番号
     private static final InetAddress DEFAULT_MY_LOCATORADDR = LocalInetAddrs.choice();
     private static final String DEFAULT_PEER_LOCATOR = DEFAULT_MY_LOCATORADDR.getHostAddress() + ":" + DEFAULT_MY_LOCATORPORT;
+    private static final int CACHE_MAX_GROUPS = 1000;       // 応答ピアのキャッシュ: Group ID 数
+    private static final int CACHE_MAX_PER_GROUP = 8;       // 応答ピアのキャッシュ: グループあたりの応答ピア数
+    private static final long CACHE_TTL = 10 * 1000;        // 応答ピアのキャッシュ: 有効期間 (ms)
+    private static final double LOCALITY_SLACK = 0.5;       // locality: 最良の RTT からの許容幅
+    private static final long LOCALITY_PROBE_INTERVAL = 5 * 1000;  // locality: probe の間隔 (ms)
+    private static final int DEFAULT_BATCH_PIPELINE = 16;   // バッチモード: 同時に実行する cast の数
 
     private PeerLocator peerLocator = null;
     private PeerLocator seedLocator = null;
+    private File journalFile = null;
+    private String batchSource = null;      // バッチモードの入力 ("-" は標準入力) null 時は対話モード
+    private String batchFormat = "json";    // バッチモードの出力形式 (json, csv)
+    private int batchPipeline = DEFAULT_BATCH_PIPELINE;
+
+    private final HashMap<String, SimpleAnycastHandle<String, String>> handles = new HashMap<>();
+    private PrintStream out = System.out;   // コマンドの表示先 (バッチモードでは標準エラー出力)
 
     private boolean active = true;
 
@@ -57,11 +106,21 @@ public class Shell {
 
     public static void main(String[] args) {
         final Shell ss = new Shell();
+        int exitCode = 0;
 
         if (!ss.initSetting(args)) {
-            printUsage();
+            if (hasBatchOption(args)) {
+                // バッチモードでは呼び出し元に誤りを伝える
+                printUsage(System.err);
+                System.exit(2);
+            }
+            printUsage(System.out);
             return;
         }
+        if (ss.batchSource != null) {
+            // 標準出力は結果の出力に用いる
+            ss.setOutput(System.err);
+        }
 
         try {
             // サーバ起動
@@ -82,7 +141,39 @@ public class Shell {
                 }
             });
 
-            HashMap<String, SimpleAnycastHandle<String, String>> handles = new HashMap<>();
+            final HashMap<String, SimpleAnycastHandle<String, String>> handles = ss.handles;
+            if (ss.journalFile != null) {
+                // 以前の登録を復元する
+                final List<String> names = new ArrayList<>();
+                List<SimpleAnycastHandle<String, String>> restored = ss.ha.restore(new HandleRestorer<String, String>() {
+                    @Override
+                    public SimpleAnycastListener<String, String> listenerFor(String groupid) {
+                        String shellhandle = newShellHandle(handles, groupid);
+                        names.add(shellhandle);
+                        handles.put(shellhandle, null);     // 名前の予約
+                        return ss.newListener(shellhandle);
+                    }
+                });
+                for (int i = 0; i < restored.size(); i++) {
+                    handles.put(names.get(i), restored.get(i));
+                    ss.out.println("restored handle " + names.get(i));
+                }
+            }
+
+            if (ss.batchSource != null) {
+                // バッチモード
+                BufferedReader reader = "-".equals(ss.batchSource)
+                        ? new BufferedReader(new InputStreamReader(System.in))
+                        : new BufferedReader(new InputStreamReader(new FileInputStream(ss.batchSource), "UTF-8"));
+                try {
+                    BatchRunner runner = new BatchRunner(ss, ss.batchFormat, ss.batchPipeline);
+                    exitCode = runner.run(reader) ? 0 : 1;
+                } finally {
+                    reader.close();
+                }
+                return;
+            }
+
             // コマンド入力待ち
             BufferedReader reader = new BufferedReader(new InputStreamReader(System.in));
             while (true) {
@@ -99,69 +190,17 @@ public class Shell {
                         continue;
 
                     String[] cmds = line.split("\\s+");
-
-                    if ("bye".equals(cmds[0])) {
-                        // bye : 終了
+                    if (!ss.execute(cmds))
                         break;
-                    } else if ("reg".equals(cmds[0])) {
-                        // register
-                        String gid = cmds[1];
-                        String pre_handle = gid + prnd.nextInt(1000);
-                        while (handles.containsKey(pre_handle)) {
-                            pre_handle = gid + prnd.nextInt(1000);
-                        }
-                        final String shellhandle = pre_handle;
-
-                        SimpleAnycastHandle<String, String> h = ss.ha.register(gid, new SimpleAnycastListener<String, String>() {
-                            @Override
-                            public String onReceive(String groupid, String obj) {
-                                String msg = "Received anycast for " + groupid + ". Parameter is " + obj + ". " + "Handle is " + shellhandle + ".";
-                                System.out.println(msg);
-                                return ss.peer.getPeerId() + ":" + msg;
-                            }
-                        });
-                        handles.put(shellhandle, h);
-                        System.out.println("registered for " + gid);
-                        System.out.println("handle is " + shellhandle);
-                    } else if ("ureg".equals(cmds[0])) {
-                        // unregister
-                        String shellhandle = cmds[1];
-                        SimpleAnycastHandle<String, String> h = handles.get(shellhandle);
-                        ss.ha.unregister(h);
-                        System.out.println("unregistered for " + shellhandle);
-                    } else if ("cast".equals(cmds[0])) {
-                        // anycast
-                        String gid = cmds[1];
-                        String arg = cmds[2];
-                        System.out.println("anycast for "+ gid);
-                        String result = ss.ha.anycast(gid, arg);
-                        System.out.println("Result: " + result);
-                    } else if ("disable".equals(cmds[0])) {
-                        // undiscoverable
-                        String shellhandle = cmds[1];
-                        SimpleAnycastHandle<String, String> h = handles.get(shellhandle);
-                        h.setUndiscoverable();
-                        System.out.println("disable receiving for " + shellhandle);
-                    } else if ("enable".equals(cmds[0])) {
-                        // discoverable
-                        String shellhandle = cmds[1];
-                        SimpleAnycastHandle<String, String> h = handles.get(shellhandle);
-                        h.setDiscoverable();
-                        System.out.println("enable receiving for " + shellhandle);
-                    } else {
-                        System.out.println(" reg <groupid>         groupid で指定された Anycast グループに入り、対応する handle が返される");
-                        System.out.println(" ureg <handle>         handle で指定された Anycast グループから離脱する");
-                        System.out.println(" cast <groupid> <msg>  groupid で指定された Anycast グループに msg を anycast する");
-                        System.out.println(" disable <handle>      handle で指定された Anycast グループから一時離脱する");
-                        System.out.println(" enable <handle>       handle で指定された Anycast グループに復帰する");
-                        System.out.println(" bye");
-                    }
+                } catch (UnknownCommandException e) {
+                    logger.error(e.getMessage());
                 } catch (Exception e) {
                     logger.error(e.getMessage(), e);
                 }
             }
         } catch (Exception e) {
             logger.error(e.getMessage(), e);
+            exitCode = 1;
         } finally {
             try {
                 // サーバ停止
@@ -170,6 +209,10 @@ public class Shell {
                 logger.error(e.getMessage(), e);
             }
         }
+        if (ss.batchSource != null) {
+            // PIAX のスレッドが残っていても終了する
+            System.exit(exitCode);
+        }
     }
 
     /**
@@ -201,6 +244,38 @@ public class Shell {
                             tmp_seed_locator = args[i];
                         }
                         break;
+                    case 'j':
+                        i++;
+                        if (i < args.length) {
+                            journalFile = new File(args[i]);
+                        }
+                        break;
+                    case 'b':
+                        i++;
+                        if (i < args.length) {
+                            batchSource = args[i];
+                        }
+                        break;
+                    case 'f':
+                        i++;
+                        if (i < args.length) {
+                            batchFormat = args[i];
+                            if (!"json".equals(batchFormat) && !"csv".equals(batchFormat)) {
+                                logger.error("Unknown output format : " + batchFormat);
+                                return false;
+                            }
+                        }
+                        break;
+                    case 'p':
+                        i++;
+                        if (i < args.length) {
+                            batchPipeline = Integer.parseInt(args[i]);
+                            if (batchPipeline <= 0) {
+                                logger.error("Pipeline should be positive : " + batchPipeline);
+                                return false;
+                            }
+                        }
+                        break;
                     case '?':
                     case 'h':
                         return false;
@@ -235,10 +310,338 @@ public class Shell {
 
     }
 
-    private static void printUsage() {
-        System.out.println("Usage: ReceiverShell [options]");
-        System.out.println("  -i <addr> sets Peer locator");
-        System.out.println("  -s <addr> sets Seed locator");
+    /**
+     * バッチモードの起動オプションを含むか
+     * @param args コマンドライン引数
+     * @return
+     */
+    private static boolean hasBatchOption(String[] args) {
+        for (String arg : args) {
+            String a = arg.trim();
+            if ("-b".equals(a) || "-f".equals(a) || "-p".equals(a))
+                return true;
+        }
+        return false;
+    }
+
+    /**
+     * コマンドの表示先を設定する
+     * @param out
+     */
+    void setOutput(PrintStream out) {
+        this.out = out;
+    }
+
+    /**
+     * anycast を実行する (バッチモードの cast 用)
+     * @param cmds cast コマンドと引数
+     * @return anycast の結果
+     * @throws Exception
+     */
+    String cast(String[] cmds) throws Exception {
+        return ha.anycast(cmds[1], cmds[2], parseConditions(cmds, 3));
+    }
+
+    /**
+     * groupcast を実行する
+     * @param cmds gcast コマンドと引数
+     * @return groupcast の結果
+     * @throws Exception
+     */
+    GroupcastResult<ArrayList<String>> groupcast(String[] cmds) throws Exception {
+        return ha.groupcast(cmds[1], cmds[2], parseConditions(cmds, 3), Aggregators.<String>toList());
+    }
+
+    /**
+     * グループのサイズを推定する
+     * @param cmds size コマンドと引数
+     * @return 推定値 標本がない場合は null
+     * @throws Exception
+     */
+    GroupSizeEstimate size(String[] cmds) throws Exception {
+        return (cmds.length > 2)
+                ? ha.sampleGroupSize(cmds[1], Integer.parseInt(cmds[2]))
+                : ha.estimateGroupSize(cmds[1]);
+    }
+
+    /**
+     * 未知のコマンド
+     */
+    static class UnknownCommandException extends IllegalArgumentException {
+        private static final long serialVersionUID = 1L;
+
+        UnknownCommandException(String cmd) {
+            super("Unknown command : " + cmd);
+        }
+    }
+
+    /**
+     * コマンドを実行する
+     * @param cmds コマンドと引数
+     * @return bye の場合 false
+     * @throws UnknownCommandException 未知のコマンドの場合 (コマンドの一覧を表示する)
+     * @throws Exception
+     */
+    boolean execute(String[] cmds) throws Exception {
+        if ("bye".equals(cmds[0])) {
+            // bye : 終了
+            return false;
+        } else if ("reg".equals(cmds[0])) {
+            // register
+            String gid = cmds[1];
+            String shellhandle = newShellHandle(handles, gid);
+
+            SimpleAnycastHandle<String, String> h = ha.register(gid, newListener(shellhandle));
+            handles.put(shellhandle, h);
+            out.println("registered for " + gid);
+            out.println("handle is " + shellhandle);
+        } else if ("regn".equals(cmds[0])) {
+            // register many handles
+            String gid = cmds[1];
+            int n = Integer.parseInt(cmds[2]);
+            int seq = 0;
+            long start = System.nanoTime();
+            for (int i = 0; i < n; i++) {
+                String shellhandle = gid + "-" + seq++;
+                while (handles.containsKey(shellhandle)) {
+                    shellhandle = gid + "-" + seq++;
+                }
+                handles.put(shellhandle, ha.register(gid, newQuietListener(shellhandle)));
+            }
+            out.println(String.format(Locale.ROOT, "registered %d handles for %s in %.2f s",
+                    n, gid, (System.nanoTime() - start) / 1e9));
+        } else if ("bench".equals(cmds[0])) {
+            // benchmark
+            Bench.parse(ha, cmds, out).run();
+        } else if ("ureg".equals(cmds[0])) {
+            // unregister
+            String shellhandle = cmds[1];
+            SimpleAnycastHandle<String, String> h = handles.get(shellhandle);
+            ha.unregister(h);
+            out.println("unregistered for " + shellhandle);
+        } else if ("cast".equals(cmds[0])) {
+            // anycast
+            String gid = cmds[1];
+            String arg = cmds[2];
+            AnycastFilter filter = parseConditions(cmds, 3);
+            out.println("anycast for "+ gid + (filter != null ? " where " + filter : ""));
+            String result = ha.anycast(gid, arg, filter);
+            out.println("Result: " + result);
+        } else if ("gcast".equals(cmds[0])) {
+            // groupcast
+            String gid = cmds[1];
+            AnycastFilter filter = parseConditions(cmds, 3);
+            out.println("groupcast for "+ gid + (filter != null ? " where " + filter : ""));
+            GroupcastResult<ArrayList<String>> result = groupcast(cmds);
+            for (String r : result.getValue()) {
+                out.println("Result: " + r);
+            }
+            out.println(result.getMembers() + " members on " + result.getResponders() + " peers"
+                    + (result.isComplete() ? "" : " (incomplete)"));
+        } else if ("size".equals(cmds[0])) {
+            // group size estimation
+            String gid = cmds[1];
+            GroupSizeEstimate est = size(cmds);
+            out.println((est != null) ? est : "no samples for " + gid);
+        } else if ("attr".equals(cmds[0])) {
+            // handle attribute
+            String shellhandle = cmds[1];
+            SimpleAnycastHandle<String, String> h = handles.get(shellhandle);
+            Serializable value = (cmds.length > 3) ? parseValue(cmds[3]) : null;
+            h.setAttribute(cmds[2], value);
+            out.println("attributes of " + shellhandle + " are " + h.getAttributes());
+        } else if ("disable".equals(cmds[0])) {
+            // undiscoverable
+            String shellhandle = cmds[1];
+            SimpleAnycastHandle<String, String> h = handles.get(shellhandle);
+            h.disable();
+            out.println("disable receiving for " + shellhandle);
+        } else if ("enable".equals(cmds[0])) {
+            // discoverable
+            String shellhandle = cmds[1];
+            SimpleAnycastHandle<String, String> h = handles.get(shellhandle);
+            h.enable();
+            out.println("enable receiving for " + shellhandle);
+        } else if ("stat".equals(cmds[0])) {
+            // statistics
+            for (GroupStats gs : ha.getMetrics().getGroupStats()) {
+                out.println(gs);
+            }
+            for (HandleStats hs : ha.getMetrics().getHandleStats()) {
+                out.println(hs);
+            }
+        } else if ("trace".equals(cmds[0])) {
+            // tracing
+            if (cmds.length > 1 && "on".equals(cmds[1])) {
+                ha.setTracer(new AnycastTracer() {
+                    @Override
+                    public void onTrace(AnycastTrace trace) {
+                        out.println(trace);
+                    }
+                });
+                out.println("trace on");
+            } else {
+                ha.setTracer(null);
+                out.println("trace off");
+            }
+        } else if ("dispatch".equals(cmds[0])) {
+            // dispatch mode
+            SimpleAnycast.DispatchMode mode = SimpleAnycast.DispatchMode.valueOf(cmds[1].toUpperCase());
+            ha.setDispatchMode(mode);
+            out.println("dispatch mode is " + mode);
+        } else if ("cache".equals(cmds[0])) {
+            // responder cache
+            if (cmds.length > 1 && "on".equals(cmds[1])) {
+                ha.enableResponderCache(CACHE_MAX_GROUPS, CACHE_MAX_PER_GROUP, CACHE_TTL);
+                out.println("cache on");
+            } else {
+                ha.disableResponderCache();
+                out.println("cache off");
+            }
+        } else if ("locality".equals(cmds[0])) {
+            // locality-aware selection
+            if (cmds.length > 1 && "on".equals(cmds[1])) {
+                if (cmds.length > 2)
+                    ha.setLocalityTag(cmds[2]);
+                ha.enableLocalityAwareness(LOCALITY_SLACK, LOCALITY_PROBE_INTERVAL);
+                out.println("locality on" + (cmds.length > 2 ? " tag is " + cmds[2] : ""));
+            } else {
+                ha.disableLocalityAwareness();
+                out.println("locality off");
+            }
+        } else {
+            printCommands();
+            if (!"help".equals(cmds[0]) && !"?".equals(cmds[0]))
+                throw new UnknownCommandException(cmds[0]);
+        }
+        return true;
+    }
+
+    /**
+     * コマンドの一覧を表示する
+     */
+    private void printCommands() {
+        {
+            out.println(" reg <groupid>         groupid で指定された Anycast グループに入り、対応する handle が返される");
+            out.println(" regn <groupid> <n>    groupid で指定された Anycast グループに n 個のハンドルを登録する");
+            out.println(" ureg <handle>         handle で指定された Anycast グループから離脱する");
+            out.println(" cast <groupid> <msg> [cond...] groupid で指定された Anycast グループに msg を anycast する");
+            out.println("                       cond は name, name=value, name>=value (整数) のいずれか");
+            out.println(" gcast <groupid> <msg> [cond...] groupid で指定された Anycast グループのすべてのハンドルに msg を送る");
+            out.println(" size <groupid> [n]    groupid で指定された Anycast グループのサイズの推定値を表示する (n 回の標本を追加する)");
+            out.println(" bench <groupid> [-c concurrency] [-n count | -d seconds] [-s payload]");
+            out.println("                       groupid への anycast の負荷を生成し結果を表示する");
+            out.println(" attr <handle> <name> [value] handle の属性を設定する (value 省略時は削除)");
+            out.println(" disable <handle>      handle で指定された Anycast グループから一時離脱する");
+            out.println(" enable <handle>       handle で指定された Anycast グループに復帰する");
+            out.println(" stat                  Anycast の統計情報を表示する");
+            out.println(" trace <on|off>        Anycast のトレース表示を切り換える");
+            out.println(" dispatch <mode>       同一ピア上のハンドルへの listener の呼び出し方を設定する (ALL, LEAST_OUTSTANDING, ROUND_ROBIN)");
+            out.println(" cache <on|off>        応答ピアのキャッシュを切り換える");
+            out.println(" locality <on|off> [tag] locality を考慮した応答ピアの選択を切り換える");
+            out.println(" help");
+            out.println(" bye");
+        }
+    }
+
+    /**
+     * 重複のない shell 上のハンドル名を得る
+     * @param handles 既存のハンドル
+     * @param gid Group ID
+     * @return
+     */
+    private static String newShellHandle(HashMap<String, SimpleAnycastHandle<String, String>> handles, String gid) {
+        String pre_handle = gid + prnd.nextInt(1000);
+        while (handles.containsKey(pre_handle)) {
+            pre_handle = gid + prnd.nextInt(1000);
+        }
+        return pre_handle;
+    }
+
+    /**
+     * 受信したメッセージを表示する listener を得る
+     * @param shellhandle shell 上のハンドル名
+     * @return
+     */
+    private SimpleAnycastListener<String, String> newListener(final String shellhandle) {
+        return new SimpleAnycastListener<String, String>() {
+            @Override
+            public String onReceive(String groupid, String obj) {
+                String msg = "Received anycast for " + groupid + ". Parameter is " + obj + ". " + "Handle is " + shellhandle + ".";
+                out.println(msg);
+                return peer.getPeerId() + ":" + msg;
+            }
+        };
+    }
+
+    /**
+     * 受信時に表示を行わず、ハンドルを識別できる値を返す listener を得る
+     * @param shellhandle shell 上のハンドル名
+     * @return
+     */
+    private SimpleAnycastListener<String, String> newQuietListener(final String shellhandle) {
+        final String reply = peer.getPeerId() + ":" + shellhandle;
+        return new SimpleAnycastListener<String, String>() {
+            @Override
+            public String onReceive(String groupid, String obj) {
+                return reply;
+            }
+        };
+    }
+
+    /**
+     * cmds[from] 以降の条件を解釈する
+     * @param cmds コマンド
+     * @param from 条件の開始位置
+     * @return 条件がない場合は null
+     */
+    private static AnycastFilter parseConditions(String[] cmds, int from) {
+        if (cmds.length <= from)
+            return null;
+        AnycastFilter[] conds = new AnycastFilter[cmds.length - from];
+        for (int i = 0; i < conds.length; i++) {
+            conds[i] = parseCondition(cmds[i + from]);
+        }
+        return (conds.length == 1) ? conds[0] : AttributeFilters.and(conds);
+    }
+
+    /**
+     * cast の条件を解釈する
+     * @param cond name, name=value, name>=value のいずれか
+     * @return
+     */
+    private static AnycastFilter parseCondition(String cond) {
+        int i = cond.indexOf(">=");
+        if (i > 0)
+            return AttributeFilters.atLeast(cond.substring(0, i), Long.valueOf(cond.substring(i + 2)));
+        i = cond.indexOf('=');
+        if (i > 0)
+            return AttributeFilters.equalTo(cond.substring(0, i), parseValue(cond.substring(i + 1)));
+        return AttributeFilters.has(cond);
+    }
+
+    /**
+     * 属性値を解釈する 整数として解釈できる場合は Long とする
+     * @param value
+     * @return
+     */
+    private static Serializable parseValue(String value) {
+        try {
+            return Long.valueOf(value);
+        } catch (NumberFormatException e) {
+            return value;
+        }
+    }
+
+    private static void printUsage(PrintStream ps) {
+        ps.println("Usage: ReceiverShell [options]");
+        ps.println("  -i <addr> sets Peer locator");
+        ps.println("  -s <addr> sets Seed locator");
+        ps.println("  -j <file> sets registration journal");
+        ps.println("  -b <file> runs commands in <file> (\"-\" for stdin) and exits with 0 if all succeeded,");
+        ps.println("            1 if any command failed, 2 if options are invalid");
+        ps.println("  -f <json|csv> sets output format of -b (default json)");
+        ps.println("  -p <n> sets number of concurrent cast in -b (default " + DEFAULT_BATCH_PIPELINE + ")");
     }
 
     public synchronized void start() throws Exception {
@@ -251,6 +654,10 @@ public class Shell {
         MSkipGraph<Destination, ComparableKey<?>> sg = (MSkipGraph<Destination, ComparableKey<?>>) tm.getOverlay("MSG");
 
         ha = new SimpleAnycast<>(sg);
+        ha.getMetrics().registerMBean(peername);
+        ha.enableDirectRequest(tm.getRPCTransport());
+        if (journalFile != null)
+            ha.enableJournal(journalFile);
 
         logger.info("Peer ID       : {}", peer.getPeerId().toString());
 
@@ -261,6 +668,7 @@ public class Shell {
     }
 
     public synchronized void stop() throws Exception {
+        ha.fin();
         logger.info("Offline peer");
         peer.leave();
         logger.info("Finalize PIAX");
@@ -0,0 +1,91 @@
+package org.piax.samples.anycast;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+import org.junit.Test;
+
+public class AggregatorsTest {
+    private static final Aggregators.Projection<Integer> AS_DOUBLE = new Aggregators.Projection<Integer>() {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        public double valueOf(Integer value) {
+            return value;
+        }
+    };
+
+    private static final Aggregators.SerializableComparator<Integer> NATURAL =
+            new Aggregators.SerializableComparator<Integer>() {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        public int compare(Integer a, Integer b) {
+            return a.compareTo(b);
+        }
+    };
+
+    /**
+     * 応答ピアと同様に、集約関数と部分結果をそれぞれ集約し combine する
+     */
+    private static <A extends java.io.Serializable> A split(AnycastAggregator<Integer, A> agg, Integer[] left,
+            Integer[] right) throws Exception {
+        AnycastAggregator<Integer, A> remote = copy(agg);
+        A a = agg.identity();
+        for (Integer v : left)
+            a = agg.accumulate(a, v);
+        A b = remote.identity();
+        for (Integer v : right)
+            b = remote.accumulate(b, v);
+        return agg.combine(a, copy(b));
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <X> X copy(X obj) throws Exception {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        ObjectOutputStream oos = new ObjectOutputStream(bos);
+        oos.writeObject(obj);
+        oos.close();
+        return (X) new ObjectInputStream(new ByteArrayInputStream(bos.toByteArray())).readObject();
+    }
+
+    @Test
+    public void count() throws Exception {
+        assertEquals(Long.valueOf(3), split(Aggregators.<Integer>count(),
+                new Integer[] { 1, null, 2 }, new Integer[] { 3 }));
+    }
+
+    @Test
+    public void toList() throws Exception {
+        ArrayList<Integer> r = split(Aggregators.<Integer>toList(),
+                new Integer[] { 1, null }, new Integer[] { 2, 3 });
+        assertEquals(Arrays.asList(1, 2, 3), r);
+    }
+
+    @Test
+    public void sum() throws Exception {
+        assertEquals(10.0, split(Aggregators.<Integer>sum(AS_DOUBLE),
+                new Integer[] { 1, 2, null }, new Integer[] { 3, 4 }), 0.0);
+        assertEquals(0.0, split(Aggregators.<Integer>sum(AS_DOUBLE),
+                new Integer[0], new Integer[0]), 0.0);
+    }
+
+    @Test
+    public void topK() throws Exception {
+        AnycastAggregator<Integer, ArrayList<Integer>> agg = Aggregators.<Integer>topK(3, NATURAL);
+        assertEquals(Arrays.asList(9, 7, 5), split(agg,
+                new Integer[] { 5, 1, 9, null }, new Integer[] { 7, 2, 3 }));
+        assertEquals(Arrays.asList(2, 1), split(agg, new Integer[] { 1 }, new Integer[] { 2 }));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void topKRejectsNonPositiveK() {
+        Aggregators.<Integer>topK(0, NATURAL);
+    }
+}
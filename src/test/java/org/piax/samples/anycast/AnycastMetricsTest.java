@@ -0,0 +1,154 @@
+package org.piax.samples.anycast;
+
+import static org.junit.Assert.*;
+
+import java.lang.management.ManagementFactory;
+import java.util.List;
+
+import javax.management.ObjectName;
+
+import org.junit.Test;
+
+public class AnycastMetricsTest {
+    @Test
+    public void groupCounters() {
+        AnycastMetrics m = new AnycastMetrics();
+        assertNull(m.getGroupStats("g"));
+        m.anycastCompleted("g", 2000000L, true);
+        m.anycastCompleted("g", 4000000L, false);
+        m.anycastTimedOut("g", 8000000L);
+        m.anycastFailed("g");
+        m.wraparound("g");
+        m.directRequest("g", true);
+        m.directRequest("g", false);
+        m.directRequest("g", false);
+
+        GroupStats s = m.getGroupStats("g");
+        assertEquals(4, s.getRequests());
+        assertEquals(1, s.getNullResults());
+        assertEquals(1, s.getTimeouts());
+        assertEquals(1, s.getErrors());
+        assertEquals(1, s.getWraparounds());
+        assertEquals(1, s.getDirectHits());
+        assertEquals(2, s.getDirectMisses());
+        assertEquals(8000, s.getLatencyMax());
+        assertEquals(14000.0 / 3, s.getLatencyMean(), 1.0);
+        assertEquals(1, m.getGroupStats().size());
+
+        m.reset();
+        assertNull(m.getGroupStats("g"));
+    }
+
+    @Test
+    public void handleCounters() throws Exception {
+        EmuPeers<String, String> peers = new EmuPeers<>(1);
+        try {
+            SimpleAnycast<String, String> sa = peers.get(0);
+            SimpleAnycastHandle<String, String> h = sa.register("g", new SimpleAnycastListener<String, String>() {
+                @Override
+                public String onReceive(String groupid, String obj) {
+                    if ("fail".equals(obj))
+                        throw new IllegalStateException(obj);
+                    return obj;
+                }
+            });
+            assertEquals("a", sa.anycast("g", "a"));
+            try {
+                sa.anycast("g", "fail");
+            } catch (Exception e) {
+                // listener の例外
+            }
+
+            AnycastMetrics m = sa.getMetrics();
+            List<HandleStats> hs = m.getHandleStats();
+            assertEquals(1, hs.size());
+            assertEquals("g", hs.get(0).getGroupId());
+            assertEquals(2, hs.get(0).getServed());
+            assertEquals(1, hs.get(0).getListenerErrors());
+            assertEquals(2, m.getGroupStats("g").getServed());
+
+            sa.unregister(h);
+            assertTrue(m.getHandleStats().isEmpty());
+        } finally {
+            peers.fin();
+        }
+    }
+
+    @Test
+    public void listenerCompletedAfterUnregisterIsNotKept() throws Exception {
+        EmuPeers<String, String> peers = new EmuPeers<>(1);
+        try {
+            SimpleAnycast<String, String> sa = peers.get(0);
+            SimpleAnycastHandle<String, String> h = sa.register("g", null);
+            AnycastMetrics m = sa.getMetrics();
+            assertEquals(1, m.getHandleStats().size());
+            sa.unregister(h);
+
+            // 登録解除と並行して完了した listener
+            m.listenerCompleted(h, 1000L, false);
+            assertTrue(m.getHandleStats().isEmpty());
+            assertEquals(1, m.getGroupStats("g").getServed());
+        } finally {
+            peers.fin();
+        }
+    }
+
+    @Test
+    public void resetKeepsRegisteredHandles() throws Exception {
+        EmuPeers<String, String> peers = new EmuPeers<>(1);
+        try {
+            SimpleAnycast<String, String> sa = peers.get(0);
+            SimpleAnycastHandle<String, String> h = sa.register("g", null);
+            AnycastMetrics m = sa.getMetrics();
+            m.listenerCompleted(h, 1000L, true);
+            m.reset();
+            assertEquals(0, m.getHandleStats().get(0).getServed());
+            m.listenerCompleted(h, 1000L, false);
+            assertEquals(1, m.getHandleStats().get(0).getServed());
+        } finally {
+            peers.fin();
+        }
+    }
+
+    @Test
+    public void runtimeExceptionIsCountedAsError() throws Exception {
+        EmuPeers<String, String> peers = new EmuPeers<>(1);
+        SimpleAnycast<String, String> sa = peers.get(0);
+        try {
+            sa.register("g", null);
+            // 終了した overlay 上の RPC は IllegalStateException となる
+            peers.overlays.get(0).fin();
+            try {
+                sa.anycast("g", "a");
+                fail();
+            } catch (RuntimeException expected) {
+            }
+            GroupStats s = sa.getMetrics().getGroupStats("g");
+            assertEquals(1, s.getRequests());
+            assertEquals(1, s.getErrors());
+        } finally {
+            sa.fin();
+            peers.peers.get(0).fin();
+        }
+    }
+
+    @Test
+    public void registerMBean() throws Exception {
+        AnycastMetrics m = new AnycastMetrics();
+        m.registerMBean("test");
+        try {
+            ObjectName on = new ObjectName(AnycastMetrics.JMX_DOMAIN + ":type=SimpleAnycast,name="
+                    + ObjectName.quote("test"));
+            assertTrue(ManagementFactory.getPlatformMBeanServer().isRegistered(on));
+            try {
+                m.registerMBean("test");
+                fail();
+            } catch (IllegalStateException e) {
+                // 登録済み
+            }
+        } finally {
+            m.unregisterMBean();
+        }
+        m.unregisterMBean();
+    }
+}
@@ -0,0 +1,118 @@
+package org.piax.samples.anycast;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.Test;
+
+public class AttributeFiltersTest {
+    private static Map<String, Serializable> attrs(Object... kv) {
+        Map<String, Serializable> m = new HashMap<>();
+        for (int i = 0; i < kv.length; i += 2)
+            m.put((String) kv[i], (Serializable) kv[i + 1]);
+        return m;
+    }
+
+    @Test
+    public void has() {
+        AnycastFilter f = AttributeFilters.has("gpu");
+        assertTrue(f.accept(attrs("gpu", true)));
+        assertFalse(f.accept(attrs("cpu", 4)));
+        assertFalse(f.accept(attrs()));
+    }
+
+    @Test
+    public void equalTo() {
+        AnycastFilter f = AttributeFilters.equalTo("zone", "a");
+        assertTrue(f.accept(attrs("zone", "a")));
+        assertFalse(f.accept(attrs("zone", "b")));
+        assertFalse(f.accept(attrs()));
+    }
+
+    @Test
+    public void atLeast() {
+        AnycastFilter f = AttributeFilters.atLeast("cpu", 4);
+        assertTrue(f.accept(attrs("cpu", 4)));
+        assertTrue(f.accept(attrs("cpu", 8)));
+        assertFalse(f.accept(attrs("cpu", 2)));
+        assertFalse(f.accept(attrs()));
+        // 比較できない型の値にはマッチしない
+        assertFalse(f.accept(attrs("cpu", 8L)));
+        assertFalse(f.accept(attrs("cpu", "8")));
+    }
+
+    @Test
+    public void and() {
+        AnycastFilter f = AttributeFilters.and(AttributeFilters.has("gpu"), AttributeFilters.atLeast("cpu", 4));
+        assertTrue(f.accept(attrs("gpu", true, "cpu", 4)));
+        assertFalse(f.accept(attrs("gpu", true, "cpu", 2)));
+        assertFalse(f.accept(attrs("cpu", 8)));
+        assertTrue(AttributeFilters.and().accept(attrs()));
+    }
+
+    @Test
+    public void rejectsNull() {
+        try {
+            AttributeFilters.has(null);
+            fail();
+        } catch (IllegalArgumentException e) {
+        }
+        try {
+            AttributeFilters.equalTo("zone", null);
+            fail();
+        } catch (IllegalArgumentException e) {
+        }
+        try {
+            AttributeFilters.and(AttributeFilters.has("a"), null);
+            fail();
+        } catch (IllegalArgumentException e) {
+        }
+    }
+
+    @Test
+    public void serializable() throws Exception {
+        AnycastFilter f = AttributeFilters.and(AttributeFilters.equalTo("zone", "a"),
+                AttributeFilters.atLeast("cpu", 4));
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        ObjectOutputStream oos = new ObjectOutputStream(bos);
+        oos.writeObject(f);
+        oos.close();
+        AnycastFilter copy = (AnycastFilter) new ObjectInputStream(
+                new ByteArrayInputStream(bos.toByteArray())).readObject();
+        assertTrue(copy.accept(attrs("zone", "a", "cpu", 4)));
+        assertFalse(copy.accept(attrs("zone", "b", "cpu", 4)));
+        assertEquals(f.toString(), copy.toString());
+    }
+
+    @Test
+    public void anycastSelectsMatchingHandle() throws Exception {
+        EmuPeers<String, String> peers = new EmuPeers<>(2);
+        try {
+            SimpleAnycast<String, String> sa = peers.get(1);
+            for (String name : new String[] { "a", "b", "c" }) {
+                final String n = name;
+                SimpleAnycastHandle<String, String> h = sa.register("g", new SimpleAnycastListener<String, String>() {
+                    @Override
+                    public String onReceive(String groupid, String obj) {
+                        return n;
+                    }
+                });
+                if ("b".equals(name))
+                    h.setAttribute("gpu", true);
+            }
+            AnycastFilter gpu = AttributeFilters.has("gpu");
+            for (int i = 0; i < 10; i++)
+                assertEquals("b", peers.get(0).anycast("g", "x", gpu));
+            assertNull(peers.get(0).anycast("g", "x", AttributeFilters.has("tpu")));
+        } finally {
+            peers.fin();
+        }
+    }
+}
@@ -0,0 +1,77 @@
+package org.piax.samples.anycast;
+
+import java.io.IOException;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.piax.common.ComparableKey;
+import org.piax.common.Destination;
+import org.piax.common.PeerId;
+import org.piax.gtrans.ChannelTransport;
+import org.piax.gtrans.Peer;
+import org.piax.gtrans.ov.sg.MSkipGraph;
+import org.piax.gtrans.raw.emu.EmuLocator;
+import org.piax.gtrans.util.ChannelAddOnTransport;
+
+/**
+ * EmuLocator による同一プロセス内の複数ピア (テスト用)
+ */
+class EmuPeers<T extends Serializable, R extends Serializable> {
+    private static int nextPort = 10000;
+
+    final List<Peer> peers = new ArrayList<>();
+    final List<MSkipGraph<Destination, ComparableKey<?>>> overlays = new ArrayList<>();
+    final List<ChannelTransport<?>> rpcTransports = new ArrayList<>();
+    final List<SimpleAnycast<T, R>> anycasts = new ArrayList<>();
+
+    /**
+     * n 個のピアを起動し、SkipGraph に参加させる
+     * 各ピアの SimpleAnycast は直接要求を有効にした状態とする
+     * @param n ピア数
+     * @throws Exception
+     */
+    @SuppressWarnings("unchecked")
+    EmuPeers(int n) throws Exception {
+        EmuLocator seed = null;
+        for (int i = 0; i < n; i++) {
+            EmuLocator loc = new EmuLocator(nextPort++);
+            Peer peer = Peer.getInstance(new PeerId("emu" + loc.getVPort()));
+            ChannelTransport<EmuLocator> base = peer.newBaseChannelTransport(loc);
+            MSkipGraph<Destination, ComparableKey<?>> sg = new MSkipGraph<>(base);
+            if (seed == null)
+                seed = loc;
+            sg.join(seed);
+            ChannelTransport<?> rpc = new ChannelAddOnTransport<>(sg);
+            SimpleAnycast<T, R> ha = new SimpleAnycast<>(sg);
+            ha.enableDirectRequest(rpc);
+            peers.add(peer);
+            overlays.add(sg);
+            rpcTransports.add(rpc);
+            anycasts.add(ha);
+        }
+    }
+
+    SimpleAnycast<T, R> get(int i) {
+        return anycasts.get(i);
+    }
+
+    /**
+     * すべてのピアを停止する
+     */
+    void fin() {
+        for (SimpleAnycast<T, R> ha : anycasts) {
+            ha.fin();
+        }
+        for (MSkipGraph<Destination, ComparableKey<?>> sg : overlays) {
+            try {
+                sg.leave();
+            } catch (IOException e) {
+                // ignore
+            }
+        }
+        for (Peer peer : peers) {
+            peer.fin();
+        }
+    }
+}
@@ -0,0 +1,82 @@
+package org.piax.samples.anycast;
+
+import static org.junit.Assert.*;
+
+import java.util.Random;
+import java.util.TreeSet;
+
+import org.junit.Test;
+import org.piax.common.Id;
+
+public class GroupSizeEstimatorTest {
+    private static SimpleAnycast.LTKey key(String groupid, Random rand) {
+        byte[] b = new byte[16];
+        rand.nextBytes(b);
+        return new SimpleAnycast.LTKey(groupid, new Id(b));
+    }
+
+    /**
+     * n 個のキーのグループに対し、samples 回の探索を模した標本を記録する
+     */
+    private static void sample(GroupSizeEstimator est, String groupid, int n, int samples, Random rand) {
+        TreeSet<SimpleAnycast.LTKey> keys = new TreeSet<>();
+        while (keys.size() < n)
+            keys.add(key(groupid, rand));
+        for (int i = 0; i < samples; i++) {
+            SimpleAnycast.LTKey searchkey = key(groupid, rand);
+            SimpleAnycast.LTKey matched = keys.floor(searchkey);
+            if (matched == null)
+                matched = keys.last();  // wraparound
+            est.record(searchkey, matched);
+        }
+    }
+
+    @Test
+    public void noSamples() {
+        GroupSizeEstimator est = new GroupSizeEstimator(10, 64);
+        assertNull(est.estimate("g"));
+    }
+
+    @Test
+    public void estimatesGroupSize() {
+        Random rand = new Random(1);
+        for (int n : new int[] { 10, 200, 5000 }) {
+            GroupSizeEstimator est = new GroupSizeEstimator(10, 256);
+            sample(est, "g", n, 256, rand);
+            GroupSizeEstimate e = est.estimate("g");
+            assertEquals(256, e.getSamples());
+            assertEquals(n, e.getEstimate(), n * 0.4);
+            assertTrue(e.getLower() <= e.getEstimate() && e.getEstimate() <= e.getUpper());
+        }
+    }
+
+    @Test
+    public void keepsOnlyRecentSamples() {
+        Random rand = new Random(2);
+        GroupSizeEstimator est = new GroupSizeEstimator(10, 8);
+        sample(est, "g", 100, 20, rand);
+        assertEquals(8, est.estimate("g").getSamples());
+    }
+
+    @Test
+    public void ignoresOtherGroupAndInfinityKeys() {
+        Random rand = new Random(3);
+        GroupSizeEstimator est = new GroupSizeEstimator(10, 8);
+        est.record(key("g", rand), key("h", rand));
+        est.record(key("g", rand), SimpleAnycast.LTKey.getMinusInfinity("g"));
+        assertNull(est.estimate("g"));
+    }
+
+    @Test
+    public void evictsLeastRecentlyUsedGroup() {
+        Random rand = new Random(4);
+        GroupSizeEstimator est = new GroupSizeEstimator(2, 8);
+        sample(est, "a", 10, 1, rand);
+        sample(est, "b", 10, 1, rand);
+        est.estimate("a");
+        sample(est, "c", 10, 1, rand);
+        assertNotNull(est.estimate("a"));
+        assertNull(est.estimate("b"));
+        assertNotNull(est.estimate("c"));
+    }
+}
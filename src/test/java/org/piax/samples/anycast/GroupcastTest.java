@@ -0,0 +1,66 @@
+package org.piax.samples.anycast;
+
+import static org.junit.Assert.*;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class GroupcastTest {
+    private EmuPeers<String, String> peers;
+
+    private static SimpleAnycastListener<String, String> echo(final String name) {
+        return new SimpleAnycastListener<String, String>() {
+            @Override
+            public String onReceive(String groupid, String obj) {
+                return name + ":" + obj;
+            }
+        };
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        peers = new EmuPeers<>(3);
+    }
+
+    @After
+    public void tearDown() {
+        peers.fin();
+    }
+
+    @Test
+    public void aggregatesPerPeer() throws Exception {
+        for (int i = 0; i < 3; i++) {
+            peers.get(1).register("g", echo("p1"));
+            peers.get(2).register("g", echo("p2"));
+        }
+        GroupcastResult<Long> r = peers.get(0).groupcast("g", "a", Aggregators.<String>count());
+        assertTrue(r.isComplete());
+        assertEquals(Long.valueOf(6), r.getValue());
+        assertEquals(6, r.getMembers());
+        assertEquals(2, r.getResponders());
+    }
+
+    @Test
+    public void skipsDisabledAndFilteredHandles() throws Exception {
+        SimpleAnycastHandle<String, String> h = peers.get(1).register("g", echo("p1"));
+        h.setAttribute("zone", "a");
+        peers.get(1).register("g", echo("p1")).disable();
+        peers.get(2).register("g", echo("p2")).setAttribute("zone", "b");
+        SimpleAnycastHandle<String, String> gone = peers.get(2).register("g", echo("p2"));
+        gone.setUndiscoverable();
+
+        GroupcastResult<java.util.ArrayList<String>> r = peers.get(0).groupcast("g", "a",
+                AttributeFilters.equalTo("zone", "a"), Aggregators.<String>toList());
+        assertEquals(java.util.Arrays.asList("p1:a"), r.getValue());
+        assertEquals(1, r.getMembers());
+    }
+
+    @Test
+    public void emptyGroup() throws Exception {
+        peers.get(1).register("other", echo("p1"));
+        GroupcastResult<Long> r = peers.get(0).groupcast("g", "a", Aggregators.<String>count());
+        assertEquals(Long.valueOf(0), r.getValue());
+        assertEquals(0, r.getResponders());
+    }
+}
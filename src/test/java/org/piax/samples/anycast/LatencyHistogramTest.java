@@ -0,0 +1,69 @@
+package org.piax.samples.anycast;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+public class LatencyHistogramTest {
+    @Test
+    public void bucketBoundsCoverValues() {
+        for (long v = 0; v < 1 << 20; v += 7) {
+            int i = LatencyHistogram.indexOf(v);
+            assertTrue(v + " > bound", v <= LatencyHistogram.upperBoundOf(i));
+            if (i > 0)
+                assertTrue(v + " <= previous bound", v > LatencyHistogram.upperBoundOf(i - 1));
+        }
+        int last = LatencyHistogram.indexOf(LatencyHistogram.HIGHEST_TRACKABLE);
+        assertEquals(LatencyHistogram.HIGHEST_TRACKABLE, LatencyHistogram.upperBoundOf(last));
+    }
+
+    @Test
+    public void relativeErrorIsBounded() {
+        for (long v = 16; v < 1L << 36; v = v * 3 + 1) {
+            long bound = LatencyHistogram.upperBoundOf(LatencyHistogram.indexOf(v));
+            assertTrue(v + " -> " + bound, (bound - v) <= v / 8);
+        }
+    }
+
+    @Test
+    public void percentiles() {
+        LatencyHistogram h = new LatencyHistogram();
+        assertEquals(0, h.getPercentile(99));
+        assertEquals(0.0, h.getMean(), 0.0);
+        for (int i = 1; i <= 100; i++)
+            h.record(i * 1000000L);
+        assertEquals(100, h.getCount());
+        assertEquals(100000000L, h.getMax());
+        assertEquals(50500000.0, h.getMean(), 1.0);
+        long p50 = h.getPercentile(50);
+        assertTrue(p50 + "", p50 >= 50000000L && p50 <= 50000000L * 9 / 8);
+        long p99 = h.getPercentile(99);
+        assertTrue(p99 + "", p99 >= 99000000L && p99 <= 100000000L);
+        assertEquals(100000000L, h.getPercentile(100));
+    }
+
+    @Test
+    public void outOfRangeValuesAreClamped() {
+        LatencyHistogram h = new LatencyHistogram();
+        h.record(-5);
+        h.record(Long.MAX_VALUE);
+        assertEquals(0, h.getPercentile(50));
+        assertEquals(LatencyHistogram.HIGHEST_TRACKABLE, h.getMax());
+        assertEquals(LatencyHistogram.HIGHEST_TRACKABLE, h.getPercentile(100));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void invalidPercentile() {
+        new LatencyHistogram().getPercentile(100.5);
+    }
+
+    @Test
+    public void reset() {
+        LatencyHistogram h = new LatencyHistogram();
+        h.record(1000);
+        h.reset();
+        assertEquals(0, h.getCount());
+        assertEquals(0, h.getMax());
+        assertEquals(0, h.getPercentile(50));
+    }
+}
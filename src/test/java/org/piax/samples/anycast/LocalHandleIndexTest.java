@@ -0,0 +1,122 @@
+package org.piax.samples.anycast;
+
+import static org.junit.Assert.*;
+
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class LocalHandleIndexTest {
+    private EmuPeers<String, String> peers;
+    private SimpleAnycast<String, String> sa;
+
+    private static SimpleAnycastListener<String, String> counting(final String name, final AtomicInteger calls) {
+        return new SimpleAnycastListener<String, String>() {
+            @Override
+            public String onReceive(String groupid, String obj) {
+                calls.incrementAndGet();
+                return name;
+            }
+        };
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        peers = new EmuPeers<>(2);
+        sa = peers.get(1);
+    }
+
+    @After
+    public void tearDown() {
+        peers.fin();
+    }
+
+    @Test
+    public void addRemove() throws Exception {
+        SimpleAnycastHandle<String, String> h1 = sa.register("g", null);
+        SimpleAnycastHandle<String, String> h2 = sa.register("h", null);
+        assertEquals(1, sa.localIndex.handles("g").size());
+
+        sa.unregister(h1);
+        assertTrue(sa.localIndex.handles("g").isEmpty());
+        assertNull(sa.localIndex.select("g", SimpleAnycast.DispatchMode.ROUND_ROBIN));
+        assertSame(h2, sa.localIndex.select("h", SimpleAnycast.DispatchMode.ROUND_ROBIN));
+    }
+
+    @Test
+    public void roundRobinVisitsEnabledHandles() throws Exception {
+        Set<SimpleAnycastHandle<String, String>> handles = new HashSet<>();
+        for (int i = 0; i < 3; i++)
+            handles.add(sa.register("g", null));
+        sa.register("g", null).disable();
+        sa.register("g", null).setUndiscoverable();
+        sa.register("other", null);
+
+        Set<SimpleAnycastHandle<String, String>> selected = new HashSet<>();
+        for (int i = 0; i < 10; i++)
+            selected.add(sa.localIndex.select("g", SimpleAnycast.DispatchMode.ROUND_ROBIN));
+        assertEquals(handles, selected);
+    }
+
+    @Test
+    public void leastOutstandingAvoidsBusyHandle() throws Exception {
+        SimpleAnycastHandle<String, String> busy = sa.register("g", null);
+        SimpleAnycastHandle<String, String> idle = sa.register("g", null);
+        busy.beginRequest();
+        try {
+            // 2 つの標本が共に busy の場合のみ busy が選ばれる (確率はキーの間隔による)
+            boolean idleSelected = false;
+            for (int i = 0; i < 1000 && !idleSelected; i++)
+                idleSelected = (sa.localIndex.select("g", SimpleAnycast.DispatchMode.LEAST_OUTSTANDING) == idle);
+            assertTrue(idleSelected);
+            idle.disable();
+            assertSame(busy, sa.localIndex.select("g", SimpleAnycast.DispatchMode.LEAST_OUTSTANDING));
+            idle.enable();
+            idle.setUndiscoverable();
+            assertSame(busy, sa.localIndex.select("g", SimpleAnycast.DispatchMode.LEAST_OUTSTANDING));
+        } finally {
+            busy.endRequest();
+        }
+    }
+
+    @Test
+    public void undiscoverableHandleIsNeverDispatched() throws Exception {
+        for (SimpleAnycast.DispatchMode mode : SimpleAnycast.DispatchMode.values()) {
+            sa.setDispatchMode(mode);
+            AtomicInteger visible = new AtomicInteger();
+            AtomicInteger hidden = new AtomicInteger();
+            SimpleAnycastHandle<String, String> v = sa.register("g" + mode, counting("visible", visible));
+            SimpleAnycastHandle<String, String> h = sa.register("g" + mode, counting("hidden", hidden));
+            h.setUndiscoverable();
+            for (int i = 0; i < 20; i++)
+                assertEquals(mode.toString(), "visible", peers.get(0).anycast("g" + mode, "a"));
+            assertEquals(mode.toString(), 20, visible.get());
+            assertEquals(mode.toString(), 0, hidden.get());
+            sa.unregister(v);
+            sa.unregister(h);
+        }
+    }
+
+    @Test
+    public void oneListenerPerQueryOnColocatedHandles() throws Exception {
+        for (SimpleAnycast.DispatchMode mode : new SimpleAnycast.DispatchMode[] {
+                SimpleAnycast.DispatchMode.ROUND_ROBIN, SimpleAnycast.DispatchMode.LEAST_OUTSTANDING }) {
+            sa.setDispatchMode(mode);
+            String gid = "c" + mode;
+            AtomicInteger calls = new AtomicInteger();
+            Set<String> served = new HashSet<>();
+            for (int i = 0; i < 5; i++)
+                sa.register(gid, counting("h" + i, calls));
+            for (int i = 0; i < 30; i++) {
+                served.add(peers.get(0).anycast(gid, "a"));
+                assertEquals(mode.toString(), i + 1, calls.get());
+            }
+            if (mode == SimpleAnycast.DispatchMode.ROUND_ROBIN)
+                assertEquals(5, served.size());
+        }
+    }
+}
@@ -0,0 +1,124 @@
+package org.piax.samples.anycast;
+
+import static org.junit.Assert.*;
+
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+import org.piax.common.Id;
+import org.piax.common.PeerId;
+
+public class LocalitySelectorTest {
+    private static final long MS = 1000 * 1000L;
+
+    private static ResponderCache.Entry entry(String peer, String tag) {
+        return new ResponderCache.Entry(new PeerId(peer), new SimpleAnycast.LTKey("g", Id.newId(16)), tag,
+                Long.MAX_VALUE);
+    }
+
+    @Test
+    public void emptyCandidates() {
+        LocalitySelector sel = new LocalitySelector(0.0);
+        assertNull(sel.select(null, null));
+        assertNull(sel.select(Arrays.<ResponderCache.Entry>asList(), null));
+    }
+
+    @Test
+    public void prefersSmallerRtt() {
+        LocalitySelector sel = new LocalitySelector(0.0);
+        ResponderCache.Entry fast = entry("fast", null);
+        ResponderCache.Entry slow = entry("slow", null);
+        sel.rtt.record(fast.endpoint, 1 * MS);
+        sel.rtt.record(slow.endpoint, 4 * MS);
+        List<ResponderCache.Entry> entries = Arrays.asList(slow, fast);
+        for (int i = 0; i < 20; i++)
+            assertSame(fast, sel.select(entries, "rack1"));
+    }
+
+    @Test
+    public void sameTagHalvesScore() {
+        LocalitySelector sel = new LocalitySelector(0.0);
+        ResponderCache.Entry remote = entry("remote", "rack2");
+        ResponderCache.Entry local = entry("local", "rack1");
+        sel.rtt.record(remote.endpoint, 2 * MS);
+        sel.rtt.record(local.endpoint, 3 * MS);
+        List<ResponderCache.Entry> entries = Arrays.asList(remote, local);
+        for (int i = 0; i < 20; i++)
+            assertSame(local, sel.select(entries, "rack1"));
+        // tag が異なる場合は RTT のみで選ぶ
+        for (int i = 0; i < 20; i++)
+            assertSame(remote, sel.select(entries, "rack3"));
+    }
+
+    @Test
+    public void unmeasuredCandidateIsPreferred() {
+        LocalitySelector sel = new LocalitySelector(0.0);
+        ResponderCache.Entry measured = entry("measured", null);
+        ResponderCache.Entry fresh = entry("fresh", null);
+        sel.rtt.record(measured.endpoint, 1 * MS);
+        assertSame(fresh, sel.select(Arrays.asList(measured, fresh), null));
+    }
+
+    @Test
+    public void slackSpreadsLoad() {
+        LocalitySelector sel = new LocalitySelector(0.5);
+        ResponderCache.Entry a = entry("a", null);
+        ResponderCache.Entry b = entry("b", null);
+        ResponderCache.Entry c = entry("c", null);
+        sel.rtt.record(a.endpoint, 10 * MS);
+        sel.rtt.record(b.endpoint, 14 * MS);
+        sel.rtt.record(c.endpoint, 20 * MS);
+        List<ResponderCache.Entry> entries = Arrays.asList(a, b, c);
+        boolean pickedA = false;
+        boolean pickedB = false;
+        for (int i = 0; i < 200; i++) {
+            ResponderCache.Entry e = sel.select(entries, null);
+            assertNotSame(c, e);
+            pickedA |= (e == a);
+            pickedB |= (e == b);
+        }
+        assertTrue(pickedA && pickedB);
+    }
+
+    @Test
+    public void rttIsSmoothed() {
+        RttEstimator rtt = new RttEstimator(2);
+        PeerId p = new PeerId("p");
+        assertEquals(-1, rtt.estimate(p));
+        rtt.record(p, 800);
+        rtt.record(p, 1600);
+        assertEquals(900, rtt.estimate(p));
+        rtt.record(p, -1);
+        assertEquals(900, rtt.estimate(p));
+    }
+
+    @Test
+    public void timeoutFollowsVariance() {
+        RttEstimator rtt = new RttEstimator(2);
+        PeerId p = new PeerId("p");
+        assertEquals(-1, rtt.timeout(p));
+        rtt.record(p, 1000);
+        assertEquals(1000 + 4 * 500, rtt.timeout(p));
+        for (int i = 0; i < 100; i++)
+            rtt.record(p, 1000);
+        assertTrue(rtt.timeout(p) < 1100);
+        rtt.recordIfAbsent(p, 50000);
+        assertEquals(1000, rtt.estimate(p));
+    }
+
+    @Test
+    public void estimatorDropsLeastRecentlyUpdatedPeer() {
+        RttEstimator rtt = new RttEstimator(2);
+        PeerId a = new PeerId("a");
+        PeerId b = new PeerId("b");
+        PeerId c = new PeerId("c");
+        rtt.record(a, 1);
+        rtt.record(b, 2);
+        rtt.record(a, 1);
+        rtt.record(c, 3);
+        assertEquals(1, rtt.estimate(a));
+        assertEquals(-1, rtt.estimate(b));
+        assertEquals(3, rtt.estimate(c));
+    }
+}
@@ -0,0 +1,214 @@
+package org.piax.samples.anycast;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.TreeMap;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.piax.common.Id;
+
+public class RegistrationJournalTest {
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    private static SimpleAnycast.LTKey key(String groupid, int n) {
+        byte[] b = new byte[16];
+        b[0] = (byte) n;
+        return new SimpleAnycast.LTKey(groupid, new Id(b));
+    }
+
+    /**
+     * ファイル中のレコード数を数える
+     */
+    private static int records(File file) throws IOException {
+        ByteBuffer b = ByteBuffer.wrap(Files.readAllBytes(file.toPath()));
+        b.getInt();
+        int n = 0;
+        while (b.hasRemaining() && b.get() != 0) {
+            int glen = b.getShort() & 0xffff;
+            b.position(b.position() + glen);
+            int slen = b.get() & 0xff;
+            b.position(b.position() + slen);
+            n++;
+        }
+        return n;
+    }
+
+    /**
+     * ジャーナルの終端の位置を得る
+     */
+    private static int end(File file) throws IOException {
+        byte[] data = Files.readAllBytes(file.toPath());
+        int pos = 4;
+        while (data[pos] != 0) {
+            int glen = ((data[pos + 1] & 0xff) << 8) | (data[pos + 2] & 0xff);
+            int slen = data[pos + 3 + glen] & 0xff;
+            pos += 4 + glen + slen;
+        }
+        return pos;
+    }
+
+    @Test
+    public void replaysOperations() throws Exception {
+        File file = new File(tmp.getRoot(), "j");
+        RegistrationJournal j = RegistrationJournal.open(file);
+        assertTrue(j.getPrevious().isEmpty());
+        j.put(key("a", 1), true);
+        j.put(key("a", 2), true);
+        j.put(key("b", 3), true);
+        j.put(key("a", 2), false);
+        j.remove(key("b", 3));
+        j.close();
+
+        j = RegistrationJournal.open(file);
+        TreeMap<SimpleAnycast.LTKey, Boolean> prev = j.getPrevious();
+        assertEquals(2, prev.size());
+        assertEquals(Boolean.TRUE, prev.get(key("a", 1)));
+        assertEquals(Boolean.FALSE, prev.get(key("a", 2)));
+        j.close();
+    }
+
+    @Test
+    public void openCompacts() throws Exception {
+        File file = new File(tmp.getRoot(), "j");
+        RegistrationJournal j = RegistrationJournal.open(file);
+        for (int round = 0; round < 50; round++) {
+            for (int i = 0; i < 10; i++)
+                j.put(key("g", i), round % 2 == 0);
+        }
+        for (int i = 5; i < 10; i++)
+            j.remove(key("g", i));
+        j.close();
+        assertEquals(505, records(file));
+
+        j = RegistrationJournal.open(file);
+        j.close();
+        assertEquals(5, records(file));
+        assertFalse(new File(file.getPath() + ".tmp").exists());
+        j = RegistrationJournal.open(file);
+        assertEquals(5, j.getPrevious().size());
+        assertEquals(Boolean.FALSE, j.getPrevious().get(key("g", 0)));
+        j.close();
+    }
+
+    @Test
+    public void tornTailIsIgnored() throws Exception {
+        File file = new File(tmp.getRoot(), "j");
+        RegistrationJournal j = RegistrationJournal.open(file);
+        j.put(key("a", 1), true);
+        j.close();
+
+        // op を書いたが本体の途中でファイルが終わっている
+        int pos = end(file);
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        raf.setLength(pos + 3);
+        raf.seek(pos);
+        raf.write(new byte[] { 1, 0, 1 });
+        raf.close();
+
+        j = RegistrationJournal.open(file);
+        assertEquals(1, j.getPrevious().size());
+        j.put(key("b", 2), true);
+        j.close();
+        j = RegistrationJournal.open(file);
+        assertEquals(2, j.getPrevious().size());
+        j.close();
+    }
+
+    @Test
+    public void recordWithoutOpIsIgnored() throws Exception {
+        File file = new File(tmp.getRoot(), "j");
+        RegistrationJournal j = RegistrationJournal.open(file);
+        j.put(key("a", 1), true);
+        j.close();
+
+        // 本体を書いたが op を書く前に終了した
+        int pos = end(file);
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        raf.seek(pos);
+        raf.write(new byte[] { 0, 0, 1, 'b', 1, 9 });
+        raf.close();
+
+        j = RegistrationJournal.open(file);
+        assertEquals(1, j.getPrevious().size());
+        j.close();
+    }
+
+    @Test
+    public void growsBeyondInitialMapping() throws Exception {
+        File file = new File(tmp.getRoot(), "j");
+        RegistrationJournal j = RegistrationJournal.open(file);
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < 1000; i++)
+            sb.append('g');
+        String group = sb.toString();
+        for (int i = 0; i < 2000; i++)
+            j.put(new SimpleAnycast.LTKey(group, new Id(new byte[] { (byte) (i >> 8), (byte) i })), true);
+        j.close();
+        assertTrue(file.length() > (1 << 20));
+
+        j = RegistrationJournal.open(file);
+        assertEquals(2000, j.getPrevious().size());
+        j.close();
+    }
+
+    @Test
+    public void compactsWhileRunning() throws Exception {
+        File file = new File(tmp.getRoot(), "j");
+        RegistrationJournal j = RegistrationJournal.open(file);
+        for (int round = 0; round < 500; round++) {
+            for (int i = 0; i < 10; i++)
+                j.put(key("g", i), round % 2 == 0);
+        }
+        j.remove(key("g", 9));
+        assertTrue(j.getRecords() < RegistrationJournal.COMPACT_MIN_RECORDS + 2 * 10);
+        j.close();
+        assertEquals(records(file), j.getRecords());
+        assertFalse(new File(file.getPath() + ".tmp").exists());
+
+        j = RegistrationJournal.open(file);
+        assertEquals(9, j.getPrevious().size());
+        assertEquals(Boolean.FALSE, j.getPrevious().get(key("g", 0)));
+        j.close();
+    }
+
+    @Test
+    public void compactsWhenMappingIsFull() throws Exception {
+        int min = RegistrationJournal.COMPACT_MIN_RECORDS;
+        RegistrationJournal.COMPACT_MIN_RECORDS = Integer.MAX_VALUE;
+        try {
+            File file = new File(tmp.getRoot(), "j");
+            RegistrationJournal j = RegistrationJournal.open(file);
+            StringBuilder sb = new StringBuilder();
+            for (int i = 0; i < 1000; i++)
+                sb.append('g');
+            String group = sb.toString();
+            // 1 MB の領域を 3 回以上埋める量を同じ 2 つのキーに書く
+            for (int i = 0; i < 3000; i++)
+                j.put(new SimpleAnycast.LTKey(group, new Id(new byte[] { (byte) (i % 2) })), i % 3 != 0);
+            j.close();
+            assertEquals(1 << 20, file.length());
+
+            j = RegistrationJournal.open(file);
+            assertEquals(2, j.getPrevious().size());
+            assertEquals(Boolean.TRUE, j.getPrevious().get(new SimpleAnycast.LTKey(group, new Id(new byte[] { 1 }))));
+            j.close();
+        } finally {
+            RegistrationJournal.COMPACT_MIN_RECORDS = min;
+        }
+    }
+
+    @Test(expected = IOException.class)
+    public void rejectsForeignFile() throws Exception {
+        File file = new File(tmp.getRoot(), "j");
+        Files.write(file.toPath(), new byte[] { 1, 2, 3, 4, 5 });
+        RegistrationJournal.open(file);
+    }
+}
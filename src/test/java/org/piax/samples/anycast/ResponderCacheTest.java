@@ -0,0 +1,112 @@
+package org.piax.samples.anycast;
+
+import static org.junit.Assert.*;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.junit.Test;
+import org.piax.common.Endpoint;
+import org.piax.common.Id;
+import org.piax.common.PeerId;
+
+public class ResponderCacheTest {
+    private static final PeerId P1 = new PeerId("p1");
+    private static final PeerId P2 = new PeerId("p2");
+
+    private static SimpleAnycast.LTKey key(String groupid) {
+        return new SimpleAnycast.LTKey(groupid, Id.newId(16));
+    }
+
+    @Test
+    public void putAndPick() {
+        ResponderCache cache = new ResponderCache(10, 4, 60 * 1000);
+        assertNull(cache.pick("g"));
+        SimpleAnycast.LTKey k = key("g");
+        cache.put("g", P1, k, "rack1");
+        ResponderCache.Entry e = cache.pick("g");
+        assertEquals(P1, e.endpoint);
+        assertEquals(k, e.key);
+        assertEquals("rack1", e.localityTag);
+        assertNull(cache.pick("h"));
+    }
+
+    @Test
+    public void sameKeyIsReplaced() {
+        ResponderCache cache = new ResponderCache(10, 4, 60 * 1000);
+        SimpleAnycast.LTKey k = key("g");
+        cache.put("g", P1, k, null);
+        cache.put("g", P1, k, "rack2");
+        List<ResponderCache.Entry> entries = cache.valid("g");
+        assertEquals(1, entries.size());
+        assertEquals("rack2", entries.get(0).localityTag);
+    }
+
+    @Test
+    public void expiredEntriesArePurged() throws Exception {
+        ResponderCache cache = new ResponderCache(10, 4, 20);
+        cache.put("g", P1, key("g"), null);
+        assertNotNull(cache.valid("g"));
+        Thread.sleep(40);
+        assertNull(cache.valid("g"));
+        assertNull(cache.pick("g"));
+    }
+
+    @Test
+    public void oldestEntryOfGroupIsDropped() {
+        ResponderCache cache = new ResponderCache(10, 2, 60 * 1000);
+        SimpleAnycast.LTKey k1 = key("g");
+        SimpleAnycast.LTKey k2 = key("g");
+        SimpleAnycast.LTKey k3 = key("g");
+        cache.put("g", P1, k1, null);
+        cache.put("g", P1, k2, null);
+        cache.put("g", P2, k3, null);
+        Set<SimpleAnycast.LTKey> keys = new HashSet<>();
+        for (ResponderCache.Entry e : cache.valid("g"))
+            keys.add(e.key);
+        assertEquals(new HashSet<>(Arrays.asList(k2, k3)), keys);
+    }
+
+    @Test
+    public void leastRecentlyUsedGroupIsDropped() {
+        ResponderCache cache = new ResponderCache(2, 4, 60 * 1000);
+        cache.put("a", P1, key("a"), null);
+        cache.put("b", P1, key("b"), null);
+        cache.pick("a");
+        cache.put("c", P1, key("c"), null);
+        assertNotNull(cache.valid("a"));
+        assertNull(cache.valid("b"));
+        assertNotNull(cache.valid("c"));
+    }
+
+    @Test
+    public void evictEntry() {
+        ResponderCache cache = new ResponderCache(10, 4, 60 * 1000);
+        cache.put("g", P1, key("g"), null);
+        ResponderCache.Entry e = cache.pick("g");
+        cache.evict("g", e);
+        assertNull(cache.valid("g"));
+    }
+
+    @Test
+    public void evictEndpointFromAllGroups() {
+        ResponderCache cache = new ResponderCache(10, 4, 60 * 1000);
+        cache.put("a", P1, key("a"), null);
+        cache.put("b", P1, key("b"), null);
+        cache.put("b", P2, key("b"), null);
+        assertEquals(new HashSet<Endpoint>(Arrays.asList(P1, P2)), cache.endpoints());
+
+        cache.evict(P1);
+        assertNull(cache.valid("a"));
+        assertEquals(1, cache.valid("b").size());
+        assertEquals(P2, cache.valid("b").get(0).endpoint);
+        assertEquals(new HashSet<Endpoint>(Arrays.asList(P2)), cache.endpoints());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsNonPositiveTtl() {
+        new ResponderCache(10, 4, 0);
+    }
+}
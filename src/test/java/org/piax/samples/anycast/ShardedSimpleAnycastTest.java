@@ -0,0 +1,119 @@
+package org.piax.samples.anycast;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.piax.common.ServiceId;
+
+public class ShardedSimpleAnycastTest {
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    private EmuPeers<String, String> peers;
+
+    private static SimpleAnycastListener<String, String> echo(final String name) {
+        return new SimpleAnycastListener<String, String>() {
+            @Override
+            public String onReceive(String groupid, String obj) {
+                return name + ":" + groupid + ":" + obj;
+            }
+        };
+    }
+
+    private ShardedSimpleAnycast<String, String> sharded(int peer, String base) {
+        return new ShardedSimpleAnycast<String, String>(
+                Collections.singletonList(peers.overlays.get(peer)), 3, new ServiceId(base));
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        peers = new EmuPeers<>(2);
+    }
+
+    @After
+    public void tearDown() {
+        peers.fin();
+    }
+
+    @Test
+    public void routesGroupsToShards() throws Exception {
+        ShardedSimpleAnycast<String, String> server = sharded(1, "S");
+        ShardedSimpleAnycast<String, String> client = sharded(0, "S");
+        try {
+            Set<SimpleAnycast<String, String>> used = new HashSet<>();
+            for (String g : new String[] { "a", "b", "c", "d", "e", "f" }) {
+                SimpleAnycastHandle<String, String> h = server.register(g, echo("p1"));
+                assertEquals(server.getShards().indexOf(server.shardOf(g)),
+                        client.getShards().indexOf(client.shardOf(g)));
+                assertTrue(server.shardOf(g).am.containsKey(h.getLTKey()));
+                used.add(server.shardOf(g));
+            }
+            assertTrue(used.size() > 1);
+            for (String g : new String[] { "a", "b", "c", "d", "e", "f" })
+                assertEquals("p1:" + g + ":x", client.anycast(g, "x"));
+        } finally {
+            client.fin();
+            server.fin();
+        }
+    }
+
+    @Test
+    public void configurationReachesEveryShard() throws Exception {
+        ShardedSimpleAnycast<String, String> sa = sharded(0, "S");
+        try {
+            sa.enableDirectRequest(peers.rpcTransports.get(0));
+            sa.enableResponderCache(10, 4, 1000);
+            sa.setLocalityTag("rack1");
+            sa.enableLocalityAwareness(0.5, 0);
+            for (SimpleAnycast<String, String> s : sa.getShards())
+                assertEquals("rack1", s.getLocalityTag());
+            sa.disableLocalityAwareness();
+        } finally {
+            sa.fin();
+        }
+    }
+
+    @Test
+    public void journalPerShard() throws Exception {
+        File file = new File(tmp.getRoot(), "journal");
+        ShardedSimpleAnycast<String, String> first = sharded(1, "S");
+        Set<SimpleAnycast.LTKey> keys = new HashSet<>();
+        first.enableJournal(file);
+        for (String g : new String[] { "a", "b", "c", "d" })
+            keys.add(first.register(g, echo("p1")).getLTKey());
+        first.fin();
+        for (int i = 0; i < 3; i++)
+            assertTrue(new File(file.getPath() + "." + i).exists());
+
+        ShardedSimpleAnycast<String, String> second = sharded(1, "T");
+        try {
+            second.enableJournal(file);
+            assertEquals(4, second.getPreviousRegistrations());
+            List<SimpleAnycastHandle<String, String>> restored = second.restore(new HandleRestorer<String, String>() {
+                @Override
+                public SimpleAnycastListener<String, String> listenerFor(String groupid) {
+                    return echo("restored");
+                }
+            });
+            assertEquals(0, second.getPreviousRegistrations());
+            Set<SimpleAnycast.LTKey> restoredKeys = new HashSet<>();
+            for (SimpleAnycastHandle<String, String> h : restored) {
+                restoredKeys.add(h.getLTKey());
+                assertTrue(second.shardOf(h.getGroupId()).am.containsKey(h.getLTKey()));
+            }
+            assertEquals(keys, restoredKeys);
+        } finally {
+            second.fin();
+        }
+    }
+}
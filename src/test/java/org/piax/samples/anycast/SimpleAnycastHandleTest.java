@@ -0,0 +1,139 @@
+package org.piax.samples.anycast;
+
+import static org.junit.Assert.*;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class SimpleAnycastHandleTest {
+    private EmuPeers<String, String> peers;
+
+    private static SimpleAnycastListener<String, String> echo(final String name) {
+        return new SimpleAnycastListener<String, String>() {
+            @Override
+            public String onReceive(String groupid, String obj) {
+                return name + ":" + obj;
+            }
+        };
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        peers = new EmuPeers<>(2);
+    }
+
+    @After
+    public void tearDown() {
+        peers.fin();
+    }
+
+    @Test
+    public void disabledHandleForwardsToNeighbour() throws Exception {
+        SimpleAnycast<String, String> sa = peers.get(1);
+        sa.register("g", echo("on"));
+        SimpleAnycastHandle<String, String> off = sa.register("g", echo("off"));
+        off.disable();
+        assertTrue(off.isDiscoverable());
+        for (int i = 0; i < 10; i++)
+            assertEquals("on:a", peers.get(0).anycast("g", "a"));
+
+        off.enable();
+        assertTrue(off.isEnabled());
+    }
+
+    @Test
+    public void idleDisabledHandleLosesKeyAndEnableRestoresIt() throws Exception {
+        int timeout = SimpleAnycast.SOFT_DISABLE_IDLE_TIMEOUT;
+        SimpleAnycast.SOFT_DISABLE_IDLE_TIMEOUT = 50;
+        try {
+            SimpleAnycastHandle<String, String> h = peers.get(1).register("g", echo("p1"));
+            h.disable();
+            Thread.sleep(300);
+            assertFalse(h.isDiscoverable());
+            assertNull(peers.get(0).anycast("g", "a"));
+
+            h.enable();
+            assertTrue(h.isDiscoverable());
+            assertEquals("p1:b", peers.get(0).anycast("g", "b"));
+        } finally {
+            SimpleAnycast.SOFT_DISABLE_IDLE_TIMEOUT = timeout;
+        }
+    }
+
+    @Test
+    public void enableDoesNotChangeDiscoverability() throws Exception {
+        SimpleAnycastHandle<String, String> h = peers.get(1).register("g", echo("p1"));
+        h.setUndiscoverable();
+        h.enable();
+        assertTrue(h.isEnabled());
+        assertFalse(h.isDiscoverable());
+        assertNull(peers.get(0).anycast("g", "a"));
+
+        h.disable();
+        h.enable();
+        assertFalse(h.isDiscoverable());
+
+        h.setDiscoverable();
+        assertEquals("p1:b", peers.get(0).anycast("g", "b"));
+    }
+
+    @Test
+    public void setUndiscoverableAfterIdleRemovalIsKeptByEnable() throws Exception {
+        int timeout = SimpleAnycast.SOFT_DISABLE_IDLE_TIMEOUT;
+        SimpleAnycast.SOFT_DISABLE_IDLE_TIMEOUT = 50;
+        try {
+            SimpleAnycastHandle<String, String> h = peers.get(1).register("g", echo("p1"));
+            h.disable();
+            Thread.sleep(300);
+            assertFalse(h.isDiscoverable());
+            // 明示的に探索されない状態とした場合、enable はキーを戻さない
+            h.setUndiscoverable();
+            h.enable();
+            assertFalse(h.isDiscoverable());
+        } finally {
+            SimpleAnycast.SOFT_DISABLE_IDLE_TIMEOUT = timeout;
+        }
+    }
+
+    @Test
+    public void unregisterDisposesUndiscoverableHandle() throws Exception {
+        SimpleAnycast<String, String> sa = peers.get(1);
+        SimpleAnycastHandle<String, String> h = sa.register("g", echo("p1"));
+        h.setUndiscoverable();
+        sa.unregister(h);
+        try {
+            h.enable();
+            fail();
+        } catch (IllegalStateException expected) {
+        }
+        try {
+            h.setListener(null);
+            fail();
+        } catch (IllegalStateException expected) {
+        }
+        assertFalse(h.isDiscoverable());
+        assertEquals(0, sa.am.size());
+    }
+
+    @Test
+    public void unregisterCancelsPendingRemoval() throws Exception {
+        int timeout = SimpleAnycast.SOFT_DISABLE_IDLE_TIMEOUT;
+        SimpleAnycast.SOFT_DISABLE_IDLE_TIMEOUT = 50;
+        try {
+            SimpleAnycast<String, String> sa = peers.get(1);
+            SimpleAnycastHandle<String, String> h = sa.register("g", echo("p1"));
+            h.disable();
+            sa.unregister(h);
+            assertFalse(h.isDiscoverable());
+            Thread.sleep(200);
+            try {
+                h.disable();
+                fail();
+            } catch (IllegalStateException expected) {
+            }
+        } finally {
+            SimpleAnycast.SOFT_DISABLE_IDLE_TIMEOUT = timeout;
+        }
+    }
+}
@@ -0,0 +1,262 @@
+package org.piax.samples.anycast;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.piax.common.Endpoint;
+import org.piax.common.ServiceId;
+
+public class SimpleAnycastTest {
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    private EmuPeers<String, String> peers;
+
+    private static SimpleAnycastListener<String, String> echo(final String name) {
+        return new SimpleAnycastListener<String, String>() {
+            @Override
+            public String onReceive(String groupid, String obj) {
+                return name + ":" + obj;
+            }
+        };
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        peers = new EmuPeers<>(3);
+        peers.get(0).getMetrics().setEnabled(true);
+    }
+
+    @After
+    public void tearDown() {
+        peers.fin();
+    }
+
+    @Test
+    public void cachedResponderIsUsedOnSecondCall() throws Exception {
+        peers.get(1).register("g", echo("p1"));
+        SimpleAnycast<String, String> client = peers.get(0);
+        client.enableResponderCache(10, 4, 60 * 1000);
+
+        assertEquals("p1:a", client.anycast("g", "a"));
+        assertEquals(0, client.getMetrics().getGroupStats("g").getDirectHits());
+
+        assertEquals("p1:b", client.anycast("g", "b"));
+        assertEquals(1, client.getMetrics().getGroupStats("g").getDirectHits());
+        assertEquals(0, client.getMetrics().getGroupStats("g").getDirectMisses());
+    }
+
+    @Test
+    public void cachedResponderSkipsUndiscoverableHandle() throws Exception {
+        final AtomicInteger calls = new AtomicInteger();
+        SimpleAnycastHandle<String, String> h = peers.get(1).register("g", new SimpleAnycastListener<String, String>() {
+            @Override
+            public String onReceive(String groupid, String obj) {
+                calls.incrementAndGet();
+                return "p1:" + obj;
+            }
+        });
+        SimpleAnycast<String, String> client = peers.get(0);
+        client.enableResponderCache(10, 4, 60 * 1000);
+        assertEquals("p1:a", client.anycast("g", "a"));
+        assertEquals(1, calls.get());
+
+        // キャッシュ済みの直接要求でも被探索でないハンドルは呼ばれない
+        h.setUndiscoverable();
+        assertNull(client.anycast("g", "b"));
+        assertEquals(1, calls.get());
+        assertEquals(1, client.getMetrics().getGroupStats("g").getDirectMisses());
+        assertEquals(0, client.getMetrics().getGroupStats("g").getDirectHits());
+    }
+
+    @Test
+    public void traceHasRemoteResponderTiming() throws Exception {
+        peers.get(1).register("g", new SimpleAnycastListener<String, String>() {
+            @Override
+            public String onReceive(String groupid, String obj) {
+                try {
+                    Thread.sleep(5);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                return obj;
+            }
+        });
+        SimpleAnycast<String, String> client = peers.get(0);
+        final List<AnycastTrace> traces = new ArrayList<>();
+        client.setTracer(new AnycastTracer() {
+            @Override
+            public void onTrace(AnycastTrace trace) {
+                traces.add(trace);
+            }
+        });
+
+        assertEquals("a", client.anycast("g", "a"));
+        assertEquals(1, traces.size());
+        AnycastTrace trace = traces.get(0);
+        assertTrue(trace.isFound());
+        assertEquals(peers.overlays.get(1).getPeerId(), trace.getResponder());
+        assertTrue(trace.hasResponderTiming());
+        assertTrue(trace.getReceiveDelayMillis() >= 0);
+        assertTrue(trace.getListenerNanos() >= 5 * 1000 * 1000L);
+        assertTrue(trace.getHandlingNanos() >= trace.getListenerNanos());
+    }
+
+    @Test
+    public void anycastFeedsGroupSizeEstimate() throws Exception {
+        for (int i = 0; i < 4; i++)
+            peers.get(1).register("g", echo("p1"));
+        SimpleAnycast<String, String> client = peers.get(0);
+        assertNull(client.estimateGroupSize("g"));
+
+        for (int i = 0; i < 8; i++)
+            assertNotNull(client.anycast("g", "a"));
+        GroupSizeEstimate e = client.estimateGroupSize("g");
+        assertNotNull(e);
+        assertEquals(8, e.getSamples());
+        assertTrue(e.getEstimate() > 0.0 && e.getEstimate() < Double.POSITIVE_INFINITY);
+    }
+
+    @Test
+    public void localityRanksCachedResponders() throws Exception {
+        Endpoint far = peers.overlays.get(1).getPeerId();
+        Endpoint near = peers.overlays.get(2).getPeerId();
+        peers.get(1).setLocalityTag("rack2");
+        peers.get(1).register("g", echo("far"));
+        peers.get(2).setLocalityTag("rack1");
+        peers.get(2).register("g", echo("near"));
+
+        SimpleAnycast<String, String> client = peers.get(0);
+        client.setLocalityTag("rack1");
+        client.enableResponderCache(10, 4, 60 * 1000);
+        client.enableLocalityAwareness(0.0, 0);
+        final List<AnycastTrace> traces = new ArrayList<>();
+        client.setTracer(new AnycastTracer() {
+            @Override
+            public void onTrace(AnycastTrace trace) {
+                traces.add(trace);
+            }
+        });
+
+        int explore = SimpleAnycast.LOCALITY_EXPLORE_PERCENT;
+        try {
+            // SkipGraph 上の探索のみで両方の応答ピアをキャッシュする
+            SimpleAnycast.LOCALITY_EXPLORE_PERCENT = 100;
+            Set<Endpoint> seen = new HashSet<>();
+            for (int i = 0; i < 100 && seen.size() < 2; i++) {
+                client.anycast("g", "a");
+                seen.add(traces.get(traces.size() - 1).getResponder());
+            }
+            assertEquals(2, seen.size());
+
+            client.probeResponders();
+            long farRtt = client.getRttEstimate(far);
+            long nearRtt = client.getRttEstimate(near);
+            assertTrue(farRtt >= 0 && nearRtt >= 0);
+
+            SimpleAnycast.LOCALITY_EXPLORE_PERCENT = 0;
+            traces.clear();
+            String result = client.anycast("g", "b");
+            AnycastTrace trace = traces.get(0);
+            assertTrue(trace.isDirect());
+            if (nearRtt * LocalitySelector.LOCAL_TAG_FACTOR < farRtt) {
+                assertEquals(near, trace.getResponder());
+                assertEquals("near:b", result);
+            } else {
+                assertEquals(far, trace.getResponder());
+                assertEquals("far:b", result);
+            }
+        } finally {
+            SimpleAnycast.LOCALITY_EXPLORE_PERCENT = explore;
+        }
+    }
+
+    @Test
+    public void unresponsiveCachedResponderCostsOnlyAdaptiveTimeout() throws Exception {
+        final CountDownLatch release = new CountDownLatch(1);
+        final AtomicBoolean stall = new AtomicBoolean(false);
+        peers.get(1).register("g", new SimpleAnycastListener<String, String>() {
+            @Override
+            public String onReceive(String groupid, String obj) {
+                // 最初の 1 回のみ応答を止める
+                if (stall.compareAndSet(true, false)) {
+                    try {
+                        release.await(2, TimeUnit.SECONDS);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+                return "p1:" + obj;
+            }
+        });
+        SimpleAnycast<String, String> client = peers.get(0);
+        client.enableResponderCache(10, 4, 60 * 1000);
+        assertEquals("p1:a", client.anycast("g", "a"));
+        Endpoint p1 = peers.overlays.get(1).getPeerId();
+        int timeout = client.directTimeout(p1);
+        assertTrue(timeout >= SimpleAnycast.DIRECT_REQUEST_MIN_TIMEOUT);
+        assertTrue(timeout < SimpleAnycast.DIRECT_REQUEST_TIMEOUT);
+
+        // p1 のハンドルは被探索状態のまま、直接要求の listener が応答しない
+        stall.set(true);
+        try {
+            long start = System.nanoTime();
+            assertEquals("p1:b", client.anycast("g", "b"));
+            long elapsedMillis = (System.nanoTime() - start) / 1000000L;
+            assertTrue("elapsed " + elapsedMillis, elapsedMillis < SimpleAnycast.DIRECT_REQUEST_TIMEOUT);
+            assertEquals(1, client.getMetrics().getGroupStats("g").getDirectMisses());
+            assertEquals(0, client.getMetrics().getGroupStats("g").getDirectHits());
+        } finally {
+            release.countDown();
+        }
+    }
+
+    @Test
+    public void registerReusesPreviousKeysPreferringDiscoverable() throws Exception {
+        File file = new File(tmp.getRoot(), "journal");
+        SimpleAnycast<String, String> before = new SimpleAnycast<>(peers.overlays.get(1), new ServiceId("before"));
+        before.enableJournal(file);
+        SimpleAnycastHandle<String, String> hidden = before.register("g", echo("p1"));
+        SimpleAnycastHandle<String, String> visible = before.register("g", echo("p1"));
+        hidden.setUndiscoverable();
+        before.fin();
+
+        SimpleAnycast<String, String> after = new SimpleAnycast<>(peers.overlays.get(1), new ServiceId("after"));
+        try {
+            after.enableJournal(file);
+            assertEquals(2, after.getPreviousRegistrations());
+
+            SimpleAnycastHandle<String, String> h = after.register("g", echo("p1"));
+            assertEquals(visible.getLTKey(), h.getLTKey());
+            assertTrue(h.isEnabled());
+            assertTrue(h.isDiscoverable());
+
+            h = after.register("g", echo("p1"));
+            assertEquals(hidden.getLTKey(), h.getLTKey());
+            assertFalse(h.isEnabled());
+            assertFalse(h.isDiscoverable());
+
+            h = after.register("g", echo("p1"));
+            assertNotEquals(hidden.getLTKey(), h.getLTKey());
+            assertNotEquals(visible.getLTKey(), h.getLTKey());
+            assertTrue(h.isDiscoverable());
+            assertEquals(0, after.getPreviousRegistrations());
+        } finally {
+            after.fin();
+        }
+    }
+}
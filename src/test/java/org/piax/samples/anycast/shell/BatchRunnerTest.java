@@ -0,0 +1,100 @@
+package org.piax.samples.anycast.shell;
+
+import static org.junit.Assert.*;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.io.StringReader;
+import java.util.Locale;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class BatchRunnerTest {
+    private PrintStream stdout;
+    private ByteArrayOutputStream captured;
+
+    @Before
+    public void setUp() {
+        stdout = System.out;
+        captured = new ByteArrayOutputStream();
+        System.setOut(new PrintStream(captured, true));
+    }
+
+    @After
+    public void tearDown() {
+        System.setOut(stdout);
+    }
+
+    private boolean run(String format, String input) throws Exception {
+        Shell shell = new Shell();
+        shell.setOutput(new PrintStream(new ByteArrayOutputStream()));
+        return new BatchRunner(shell, format, 2).run(new BufferedReader(new StringReader(input)));
+    }
+
+    private String[] lines() {
+        return captured.toString().split("\\r?\\n");
+    }
+
+    @Test
+    public void testJsonEscape() {
+        assertEquals("null", BatchRunner.json(null));
+        assertEquals("\"abc\"", BatchRunner.json("abc"));
+        assertEquals("\"a\\\"b\"", BatchRunner.json("a\"b"));
+        assertEquals("\"a\\\\b\"", BatchRunner.json("a\\b"));
+        assertEquals("\"a\\nb\\rc\\td\"", BatchRunner.json("a\nb\rc\td"));
+        assertEquals("\"a\\u0001b\\u001f\"", BatchRunner.json("a\u0001b\u001f"));
+        assertEquals("\"あ,\"", BatchRunner.json("あ,"));
+    }
+
+    @Test
+    public void testCsvEscape() {
+        assertEquals("", BatchRunner.csv(null));
+        assertEquals("abc", BatchRunner.csv("abc"));
+        assertEquals("\"a,b\"", BatchRunner.csv("a,b"));
+        assertEquals("\"a\"\"b\"", BatchRunner.csv("a\"b"));
+        assertEquals("\"a\nb\"", BatchRunner.csv("a\nb"));
+        assertEquals("\"a\rb\"", BatchRunner.csv("a\rb"));
+        assertEquals("a\\b", BatchRunner.csv("a\\b"));
+    }
+
+    @Test
+    public void testUnknownCommandIsError() throws Exception {
+        assertFalse(run("json", "# comment\n\nfoo x\n"));
+        String[] out = lines();
+        assertEquals(1, out.length);
+        assertTrue(out[0], out[0].startsWith("{\"line\":3,\"cmd\":\"foo\",\"args\":\"x\",\"status\":\"error\","));
+        assertTrue(out[0], out[0].contains("Unknown command : foo"));
+    }
+
+    @Test
+    public void testHelpIsNotError() throws Exception {
+        assertTrue(run("json", "help\n"));
+        assertTrue(lines()[0], lines()[0].contains("\"status\":\"ok\""));
+    }
+
+    @Test
+    public void testLatencyIgnoresDefaultLocale() throws Exception {
+        Locale locale = Locale.getDefault();
+        Locale.setDefault(Locale.GERMANY);
+        try {
+            assertTrue(run("csv", "help\n"));
+        } finally {
+            Locale.setDefault(locale);
+        }
+        String[] out = lines();
+        assertTrue(out[1], out[1].matches("1,help,,ok,[0-9]+\\.[0-9]{3},.*"));
+    }
+
+    @Test
+    public void testByeStops() throws Exception {
+        assertTrue(run("csv", "help\nbye\nfoo\n"));
+        String[] out = lines();
+        assertEquals(3, out.length);
+        assertEquals("line,cmd,args,status,latency_ms,result,error", out[0]);
+        assertTrue(out[1], out[1].startsWith("1,help,,ok,"));
+        assertTrue(out[2], out[2].startsWith("2,bye,,ok,"));
+    }
+}
@@ -0,0 +1,66 @@
+package org.piax.samples.anycast.shell;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+
+import org.junit.Test;
+
+public class BenchTest {
+    private static Bench parse(String line) {
+        return Bench.parse(null, line.split(" "), new PrintStream(new ByteArrayOutputStream()));
+    }
+
+    private static void assertRejected(String line, String message) {
+        try {
+            parse(line);
+            fail("accepted: " + line);
+        } catch (IllegalArgumentException e) {
+            if (message != null)
+                assertEquals(message, e.getMessage());
+        }
+    }
+
+    @Test
+    public void testDefaults() {
+        Bench b = parse("bench g");
+        assertEquals(1, b.getConcurrency());
+        assertEquals(1000, b.getCount());
+        assertEquals(0, b.getDurationMillis());
+        assertEquals(16, b.getPayloadSize());
+    }
+
+    @Test
+    public void testOptions() {
+        Bench b = parse("bench g -c 8 -n 500 -s 0");
+        assertEquals(8, b.getConcurrency());
+        assertEquals(500, b.getCount());
+        assertEquals(0, b.getDurationMillis());
+        assertEquals(0, b.getPayloadSize());
+    }
+
+    @Test
+    public void testLastOfCountAndDurationWins() {
+        Bench b = parse("bench g -n 500 -d 3");
+        assertEquals(0, b.getCount());
+        assertEquals(3000, b.getDurationMillis());
+
+        b = parse("bench g -d 3 -n 500");
+        assertEquals(500, b.getCount());
+        assertEquals(0, b.getDurationMillis());
+    }
+
+    @Test
+    public void testErrors() {
+        assertRejected("bench", "groupid should be specified");
+        assertRejected("bench g -c", "no value for -c");
+        assertRejected("bench g -x 1", "unknown option -x");
+        assertRejected("bench g -c 0", "concurrency should be positive");
+        assertRejected("bench g -n 0", "count or duration should be positive");
+        assertRejected("bench g -d 0", "count or duration should be positive");
+        assertRejected("bench g -s -1", "payload should not be negative");
+        // NumberFormatException
+        assertRejected("bench g -c many", null);
+    }
+}